@@ -0,0 +1,21 @@
+#!/usr/bin/env bash
+set -euo pipefail
+
+# Builds the JMH benchmarks and runs them with the gc profiler (allocation rate per operation).
+# Results go to bench-results/<benchmark regex>-<timestamp>.json; compare against the baselines in
+# bench-results/baseline/ to spot regressions.
+#
+# usage: ./run-benchmarks.sh [benchmark regex] [extra JMH options...]
+#   e.g. ./run-benchmarks.sh ShortestPathBenchmark -p routers=1000 -p topology=grid
+
+cd "$(dirname "$0")"
+
+PATTERN="${1:-ShortestPathBenchmark}"
+shift || true
+
+mvn -q -Pjmh -DskipTests clean package
+
+mkdir -p bench-results
+OUT="bench-results/$(echo "$PATTERN" | tr -c 'A-Za-z0-9_\n' '_')-$(date +%Y%m%d-%H%M%S).json"
+java -jar target/benchmarks.jar "$PATTERN" -prof gc -rf json -rff "$OUT" "$@"
+echo "Results written to $OUT"
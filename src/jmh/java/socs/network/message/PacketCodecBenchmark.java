@@ -0,0 +1,239 @@
+package socs.network.message;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.Vector;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encode and decode cost of one SOSPFPacket per sospfType, in both wire formats.
+ * <p/>
+ * java is the ObjectOutputStream path as PacketConnection uses it: one long-lived stream per
+ * connection, reset after every packet. binary is one SOSPFCodec frame (length prefix plus body).
+ * <p/>
+ * Sizes do not need timing: main() prints the bytes on the wire of every shape in both formats, so a
+ * field added to a packet shows up as a diff against bench-results/baseline/wire-bytes.txt.
+ * <p/>
+ * Packet shapes: hello, keepalive, disconnect, connect, message-N (N byte payload), lsaupdate-N,
+ * dbd-N (database description of N LSA headers) and lsrequest-N, with LSAs of four links each.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PacketCodecBenchmark {
+
+  @Param({"hello", "keepalive", "disconnect", "connect", "message-16", "message-1024", "message-65536",
+      "lsaupdate-1", "lsaupdate-100", "lsaupdate-10000", "dbd-1000", "lsrequest-100"})
+  public String packet;
+
+  @Param({"binary", "java"})
+  public String format;
+
+  private SOSPFPacket sample;
+  private boolean java;
+
+  // java format: a long-lived stream in each direction, as on a PacketConnection
+  private ByteArrayOutputStream javaBytes;
+  private ObjectOutputStream javaOut;
+  private RefillableInput javaIn;
+  private ObjectInputStream javaObjectIn;
+  private byte[] encoded;
+  // java format: the reset marker each packet ends with, moved in front of it so the reader clears its
+  // handle table before the object, as it would after the previous packet on a connection
+  private byte[] javaDecodeInput;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException, ClassNotFoundException {
+    sample = build(packet);
+    java = format.equals("java");
+    if (java) {
+      javaBytes = new ByteArrayOutputStream();
+      javaOut = new ObjectOutputStream(javaBytes);
+      javaOut.flush();
+      javaIn = new RefillableInput(javaBytes.toByteArray());
+      javaObjectIn = new ObjectInputStream(javaIn);
+      encoded = encodeJava();
+      if (encoded[encoded.length - 1] != 0x79) { // TC_RESET
+        throw new IllegalStateException("expected a reset marker after the packet");
+      }
+      javaDecodeInput = new byte[encoded.length];
+      javaDecodeInput[0] = encoded[encoded.length - 1];
+      System.arraycopy(encoded, 0, javaDecodeInput, 1, encoded.length - 1);
+      javaIn.refill(javaDecodeInput);
+      javaObjectIn.readObject();
+    } else {
+      encoded = SOSPFCodec.encode(sample);
+    }
+  }
+
+  @Benchmark
+  public byte[] encode() throws IOException {
+    return java ? encodeJava() : SOSPFCodec.encode(sample);
+  }
+
+  @Benchmark
+  public Object decode() throws IOException, ClassNotFoundException {
+    if (java) {
+      javaIn.refill(javaDecodeInput);
+      return javaObjectIn.readObject();
+    }
+    return SOSPFCodec.decode(encoded, 0, encoded.length);
+  }
+
+  private byte[] encodeJava() throws IOException {
+    javaBytes.reset();
+    javaOut.writeObject(sample);
+    javaOut.reset();
+    javaOut.flush();
+    return javaBytes.toByteArray();
+  }
+
+  /**
+   * print the size of one packet of every shape on the wire: a binary frame, and a Java-serialized packet
+   * on a long-lived stream (class descriptors included, since the stream is reset after every packet)
+   */
+  public static void main(String[] args) throws Exception {
+    String[] shapes = PacketCodecBenchmark.class.getField("packet").getAnnotation(Param.class).value();
+    System.out.println(String.format("%-16s %10s %10s", "packet", "binary", "java"));
+    for (String shape : shapes) {
+      PacketCodecBenchmark bench = new PacketCodecBenchmark();
+      bench.packet = shape;
+      bench.format = "java";
+      bench.setUp();
+      int javaBytes = bench.encoded.length;
+      int binaryBytes = 4 + SOSPFCodec.encode(bench.sample).length;
+      System.out.println(String.format("%-16s %10d %10d", shape, binaryBytes, javaBytes));
+    }
+  }
+
+  static SOSPFPacket build(String shape) {
+    String[] parts = shape.split("-");
+    int n = parts.length > 1 ? Integer.parseInt(parts[1]) : 0;
+    SOSPFPacket p = new SOSPFPacket();
+    p.srcProcessIP = "127.0.0.1";
+    p.srcProcessPort = 32101;
+    p.srcIP = "192.168.1.1";
+    p.dstIP = "192.168.1.2";
+    switch (parts[0]) {
+      case "hello":
+      case "keepalive":
+        p.sospfType = 0;
+        p.neighborID = p.srcIP;
+        p.linkWeight = 5;
+        p.keepalive = parts[0].equals("keepalive");
+        break;
+      case "disconnect":
+        p.sospfType = 2;
+        break;
+      case "connect":
+        p.sospfType = 3;
+        p.neighborID = p.srcIP;
+        p.linkWeight = 5;
+        break;
+      case "message":
+        p.sospfType = 4;
+        char[] payload = new char[n];
+        Arrays.fill(payload, 'x');
+        p.message = new String(payload);
+        p.flowId = 7;
+        break;
+      case "lsaupdate":
+        p.sospfType = 1;
+        p.lsaArray = lsas(n, 4);
+        break;
+      case "dbd":
+        p.sospfType = 5;
+        p.lsaArray = lsas(n, 0);
+        break;
+      case "lsrequest":
+        p.sospfType = 6;
+        p.lsaArray = lsas(n, 0);
+        break;
+      default:
+        throw new IllegalArgumentException("Unknown packet shape: " + shape);
+    }
+    return p;
+  }
+
+  private static Vector<LSA> lsas(int count, int linksEach) {
+    Random random = new Random(count);
+    Vector<LSA> lsas = new Vector<>(count);
+    for (int i = 0; i < count; i++) {
+      LSA lsa = new LSA();
+      lsa.linkStateID = ip(i);
+      lsa.lsaSeqNumber = Integer.MIN_VALUE + random.nextInt(1000);
+      lsa.lsaAge = random.nextInt(3600);
+      for (int l = 0; l < linksEach; l++) {
+        LinkDescription ld = new LinkDescription();
+        ld.linkID = ip(random.nextInt(Math.max(1, count)));
+        ld.portNum = l;
+        ld.weight = 1 + random.nextInt(10);
+        lsa.links.add(ld);
+      }
+      lsas.add(lsa);
+    }
+    return lsas;
+  }
+
+  private static String ip(int i) {
+    return "10." + ((i >>> 16) & 0xff) + "." + ((i >>> 8) & 0xff) + "." + (i & 0xff);
+  }
+
+  // an input stream that can be pointed at the next packet's bytes, so one ObjectInputStream reads a
+  // sequence of packets like it does on a connection
+  private static final class RefillableInput extends InputStream {
+    private byte[] buffer;
+    private int position;
+
+    RefillableInput(byte[] initial) {
+      refill(initial);
+    }
+
+    void refill(byte[] bytes) {
+      buffer = bytes;
+      position = 0;
+    }
+
+    @Override
+    public int read() {
+      return position < buffer.length ? buffer[position++] & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] target, int offset, int length) {
+      if (position >= buffer.length) {
+        return -1;
+      }
+      int n = Math.min(length, buffer.length - position);
+      System.arraycopy(buffer, position, target, offset, n);
+      position += n;
+      return n;
+    }
+
+    @Override
+    public int available() {
+      return buffer.length - position;
+    }
+  }
+}
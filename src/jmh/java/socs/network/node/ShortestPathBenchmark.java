@@ -0,0 +1,133 @@
+package socs.network.node;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import socs.network.message.LSA;
+import socs.network.message.LinkDescription;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shortest path work of one router's LinkStateDatabase over a generated Topology, seen from router
+ * 10.0.0.0.
+ * <p/>
+ * - getShortestPath / getShortestPathForDisplay: the detect command, reading a path off the current tree
+ * - routesLocal / routesFromOtherSource: the routes and routes [Source IP] commands, printed to nowhere
+ * - linkWeightChange: installing a newer LSA of a random router with one link weight changed, which
+ * repairs the tree incrementally and publishes a new snapshot
+ * <p/>
+ * Destinations and sources rotate through a fixed random sample so every call does comparable work.
+ * Run through run-benchmarks.sh for allocation rates (gc profiler) and JSON results.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ShortestPathBenchmark {
+
+  private static final int SAMPLE = 1024;
+  private static final PrintStream NOWHERE = new PrintStream(new OutputStream() {
+    @Override
+    public void write(int b) {
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+    }
+  });
+
+  @Param({"ring", "grid", "random", "scalefree"})
+  public String topology;
+
+  @Param({"10", "100", "1000", "10000", "50000"})
+  public int routers;
+
+  private LinkStateDatabase lsd;
+  private List<LSA> lsas;
+  private String[] targets;
+  private int[] changed;
+  private int next;
+  private int seqNumber;
+  private final Random random = new Random(42);
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    Topology net = Topology.generate(topology, routers, 42);
+    RouterDescription rd = new RouterDescription();
+    rd.simulatedIPAddress = Topology.ip(0);
+    lsd = new LinkStateDatabase(rd);
+    seqNumber = 1;
+    lsas = net.toLsas(seqNumber);
+    lsd.installNewer(lsas, new HashMap<>());
+
+    targets = new String[SAMPLE];
+    changed = new int[SAMPLE];
+    for (int i = 0; i < SAMPLE; i++) {
+      targets[i] = Topology.ip(random.nextInt(routers));
+      changed[i] = random.nextInt(routers);
+    }
+  }
+
+  private int nextIndex() {
+    next = (next + 1) & (SAMPLE - 1);
+    return next;
+  }
+
+  @Benchmark
+  public String getShortestPath() {
+    return lsd.getShortestPath(targets[nextIndex()]);
+  }
+
+  @Benchmark
+  public String getShortestPathForDisplay() {
+    return lsd.getShortestPathForDisplay(targets[nextIndex()]);
+  }
+
+  @Benchmark
+  public void routesLocal() {
+    RouteTables.printLocal(lsd.snapshot(), NOWHERE);
+  }
+
+  @Benchmark
+  public void routesFromOtherSource() {
+    RouteTables.printFrom(lsd.snapshot(), targets[nextIndex()], NOWHERE);
+  }
+
+  @Benchmark
+  public long linkWeightChange() {
+    int router = changed[nextIndex()];
+    LSA current = lsd.get(Topology.ip(router));
+    LSA update = new LSA();
+    update.linkStateID = current.linkStateID;
+    update.lsaSeqNumber = ++seqNumber;
+    boolean first = true;
+    for (LinkDescription ld : current.links) {
+      LinkDescription copy = new LinkDescription();
+      copy.linkID = ld.linkID;
+      copy.portNum = ld.portNum;
+      copy.weight = first ? 1 + random.nextInt(Topology.MAX_WEIGHT) : ld.weight;
+      update.links.add(copy);
+      first = false;
+    }
+    lsd.installNewer(Collections.singletonList(update), new HashMap<>());
+    return lsd.version();
+  }
+}
@@ -0,0 +1,124 @@
+package socs.network.node;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the platform and virtual ExecutionModes the way NetworkLayer uses them: one handler thread
+ * per accepted connection, each parked in a blocking read like a neighbor's persistent channel.
+ * <p/>
+ * Reports accept-to-handle latency (from accept() returning to the handler thread running) and the
+ * memory held while every connection is open.
+ * <p/>
+ * Not a JMH benchmark, but built into target/benchmarks.jar with them (mvn -Pjmh package):
+ * java -cp target/benchmarks.jar socs.network.node.ThreadModelBenchmark [platform|virtual] [connections]
+ */
+public class ThreadModelBenchmark {
+
+  public static void main(String[] args) throws Exception {
+    ExecutionMode mode = ExecutionMode.parse(args.length > 0 ? args[0] : "platform");
+    int connections = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+
+    long[] latencies = new long[connections];
+    CountDownLatch handled = new CountDownLatch(connections);
+
+    long heapBefore = usedHeapAfterGc();
+    long rssBefore = residentSetKb();
+
+    ServerSocket server = new ServerSocket(0, connections, InetAddress.getLoopbackAddress());
+    Thread acceptor = new Thread(() -> {
+      for (int i = 0; i < connections; i++) {
+        try {
+          Socket socket = server.accept();
+          long acceptedAt = System.nanoTime();
+          final int index = i;
+          mode.newThread(() -> {
+            latencies[index] = System.nanoTime() - acceptedAt;
+            handled.countDown();
+            try (InputStream in = socket.getInputStream()) {
+              while (in.read() >= 0) {
+                // hold the connection like a neighbor channel would
+              }
+            } catch (IOException ignored) {
+            }
+          }, "bench-conn-" + i).start();
+        } catch (IOException e) {
+          System.err.println("accept failed: " + e.getMessage());
+          return;
+        }
+      }
+    }, "bench-accept");
+    acceptor.setDaemon(true);
+    acceptor.start();
+
+    List<Socket> clients = new ArrayList<>(connections);
+    long start = System.nanoTime();
+    for (int i = 0; i < connections; i++) {
+      clients.add(new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort()));
+    }
+    if (!handled.await(60, TimeUnit.SECONDS)) {
+      System.err.println("timed out waiting for handlers");
+    }
+    long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+    long heapAfter = usedHeapAfterGc();
+    long rssAfter = residentSetKb();
+    int liveThreads = Thread.activeCount();
+
+    Arrays.sort(latencies);
+    System.out.println("mode=" + mode + " java=" + System.getProperty("java.version") + " connections=" + connections);
+    System.out.println("connect+handle all: " + elapsedMs + " ms");
+    System.out.println("accept-to-handle latency (us): p50=" + micros(latencies, 0.50) + " p99=" + micros(latencies, 0.99)
+        + " max=" + micros(latencies, 1.0));
+    System.out.println("heap held: " + (heapAfter - heapBefore) / 1024 + " KB ("
+        + (heapAfter - heapBefore) / connections + " bytes/connection)");
+    if (rssBefore >= 0 && rssAfter >= 0) {
+      System.out.println("RSS held: " + (rssAfter - rssBefore) + " KB (" + (rssAfter - rssBefore) * 1024 / connections
+          + " bytes/connection)");
+    }
+    System.out.println("platform threads alive: " + liveThreads);
+
+    for (Socket client : clients) {
+      client.close();
+    }
+    server.close();
+  }
+
+  private static long micros(long[] sorted, double quantile) {
+    int index = (int) Math.min(sorted.length - 1, Math.ceil(quantile * sorted.length) - 1);
+    return TimeUnit.NANOSECONDS.toMicros(sorted[Math.max(0, index)]);
+  }
+
+  private static long usedHeapAfterGc() throws InterruptedException {
+    Runtime rt = Runtime.getRuntime();
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+      Thread.sleep(50);
+    }
+    return rt.totalMemory() - rt.freeMemory();
+  }
+
+  // Linux only: thread stacks live outside the heap, so RSS is what shows their cost
+  private static long residentSetKb() {
+    try (BufferedReader reader = new BufferedReader(new FileReader("/proc/self/status"))) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (line.startsWith("VmRSS:")) {
+          return Long.parseLong(line.replaceAll("[^0-9]", ""));
+        }
+      }
+    } catch (IOException | NumberFormatException ignored) {
+    }
+    return -1;
+  }
+}
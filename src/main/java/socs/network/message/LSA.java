@@ -5,16 +5,77 @@ import java.util.LinkedList;
 
 public class LSA implements Serializable {
 
+  // fixed for the same reason as SOSPFPacket.serialVersionUID
+  private static final long serialVersionUID = 6249201243412246996L;
+
   //IP address of the router originate this LSA
   public String linkStateID;
   public int lsaSeqNumber = Integer.MIN_VALUE;
 
+  // seconds since the originator created this instance, as of when this copy was sent or received.
+  // An LSA at the database's MaxAge is being flushed from the network
+  public int lsaAge;
+
+  // local clock (ms) at which this instance had age 0; set by the database that installs it, never sent
+  public transient long ageBaseMs;
+
   public LinkedList<LinkDescription> links = new LinkedList<LinkDescription>();
 
+  /**
+   * Fletcher checksum (16 bits, as in OSPF) of what this instance advertises: ID, sequence number and
+   * links. The age is left out so every copy of one instance has the same checksum
+   */
+  public int checksum() {
+    Fletcher sum = new Fletcher();
+    sum.add(linkStateID);
+    sum.add(lsaSeqNumber);
+    for (LinkDescription ld : links) {
+      sum.add(ld.linkID);
+      sum.add(ld.portNum);
+      sum.add(ld.tosMetrics);
+      sum.add(ld.weight);
+    }
+    return sum.value();
+  }
+
+  private static final class Fletcher {
+    private int c0;
+    private int c1;
+
+    void add(String s) {
+      if (s == null) {
+        addByte(0xff);
+        return;
+      }
+      for (int i = 0; i < s.length(); i++) {
+        char c = s.charAt(i);
+        addByte(c >>> 8);
+        addByte(c);
+      }
+      addByte(0);
+    }
+
+    void add(int v) {
+      addByte(v >>> 24);
+      addByte(v >>> 16);
+      addByte(v >>> 8);
+      addByte(v);
+    }
+
+    private void addByte(int b) {
+      c0 = (c0 + (b & 0xff)) % 255;
+      c1 = (c1 + c0) % 255;
+    }
+
+    int value() {
+      return (c1 << 8) | c0;
+    }
+  }
+
   @Override
   public String toString() {
     StringBuffer sb = new StringBuffer();
-    sb.append(linkStateID + ":").append(lsaSeqNumber + "\n");
+    sb.append(linkStateID + ":").append(lsaSeqNumber + " age " + lsaAge + "\n");
     for (LinkDescription ld : links) {
       sb.append(ld);
     }
@@ -3,6 +3,10 @@ package socs.network.message;
 import java.io.Serializable;
 
 public class LinkDescription implements Serializable {
+
+  // fixed for the same reason as SOSPFPacket.serialVersionUID
+  private static final long serialVersionUID = 2751348260625803393L;
+
   public String linkID;
   public int portNum;
   public int tosMetrics;
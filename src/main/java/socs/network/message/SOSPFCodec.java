@@ -0,0 +1,386 @@
+package socs.network.message;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Vector;
+
+/**
+ * Compact binary wire format for SOSPFPacket, used in place of Java serialization.
+ * <p/>
+ * A connection starts with a 3 byte preamble ('S', 'P', version). Every packet after that is a frame:
+ * a 4 byte body length followed by the body. The body starts with the sospfType and the common header,
+ * then only the fields that type uses. Simulated and process IPs are written as 4 byte ints and LSAs
+ * as packed link arrays.
+ * <p/>
+ * Decoders ignore bytes left at the end of a body and leave missing trailing fields at their defaults,
+ * so a field can be appended to a type later without breaking routers that do not know it yet.
+ * <p/>
+ * They read from a body that is already in memory, so available() is the number of bytes left in it,
+ * and no string or array is allocated for more elements than those bytes could hold.
+ */
+public final class SOSPFCodec {
+
+  public static final byte VERSION = 1;
+
+  // first two bytes of a binary stream; a Java serialization stream starts with 0xACED instead
+  public static final byte MAGIC_0 = 'S';
+  public static final byte MAGIC_1 = 'P';
+
+  // refuse frames larger than this rather than allocating whatever a corrupt length asks for
+  public static final int MAX_FRAME_LENGTH = 64 * 1024 * 1024;
+
+  // fewest bytes an encoded LSA and link take: a null IP, the sequence number and link count / the link fields
+  private static final int MIN_LSA_BYTES = 1 + 4 + 2;
+  private static final int MIN_LINK_BYTES = 1 + 2 + 2 + 4;
+
+  // tags used in front of every IP field
+  private static final byte IP_NULL = 0;
+  private static final byte IP_V4 = 1;
+  private static final byte IP_TEXT = 2;
+
+  private SOSPFCodec() {
+  }
+
+  public static void writePreamble(OutputStream out) throws IOException {
+    out.write(MAGIC_0);
+    out.write(MAGIC_1);
+    out.write(VERSION);
+  }
+
+  /**
+   * read and check the preamble written by {@link #writePreamble}; a peer writing any version other
+   * than {@link #VERSION} is refused
+   */
+  public static void readPreamble(InputStream in) throws IOException {
+    int m0 = in.read();
+    int m1 = in.read();
+    int version = in.read();
+    if (version < 0) {
+      throw new EOFException();
+    }
+    if (m0 != MAGIC_0 || m1 != MAGIC_1) {
+      throw new IOException("not a binary SOSPF stream");
+    }
+    checkVersion(version);
+  }
+
+  public static void checkVersion(int version) throws IOException {
+    if (version != VERSION) {
+      throw new IOException("unsupported binary SOSPF version " + version + " (expected " + VERSION + ")");
+    }
+  }
+
+  public static void writeFrame(DataOutputStream out, SOSPFPacket packet) throws IOException {
+    byte[] body = encode(packet);
+    out.writeInt(body.length);
+    out.write(body);
+  }
+
+  public static SOSPFPacket readFrame(DataInputStream in) throws IOException {
+    int length = in.readInt();
+    if (length < 0 || length > MAX_FRAME_LENGTH) {
+      throw new IOException("invalid frame length " + length);
+    }
+    byte[] body = new byte[length];
+    in.readFully(body);
+    return decode(body, 0, length);
+  }
+
+  /**
+   * encode the body of one frame, without the length prefix
+   */
+  public static byte[] encode(SOSPFPacket packet) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+    DataOutputStream out = new DataOutputStream(bytes);
+
+    out.writeByte(packet.sospfType);
+    writeIp(out, packet.srcProcessIP);
+    out.writeShort(packet.srcProcessPort);
+    writeIp(out, packet.srcIP);
+    writeIp(out, packet.dstIP);
+    writeIp(out, packet.routerID);
+
+    switch (packet.sospfType) {
+      case 0: // HELLO
+        writeIp(out, packet.neighborID);
+        out.writeInt(packet.linkWeight);
+        out.writeBoolean(packet.keepalive);
+        if (packet.srcSocketPath != null) {
+          writeString(out, packet.srcSocketPath);
+        }
+        break;
+      case 1: // LSAUPDATE
+        writeLsaArray(out, packet.lsaArray);
+        writeLsaAges(out, packet.lsaArray);
+        break;
+      case 2: // DISCONNECT
+        break;
+      case 3: // CONNECT
+        writeIp(out, packet.neighborID);
+        out.writeInt(packet.linkWeight);
+        writeString(out, packet.message);
+        if (packet.srcSocketPath != null) {
+          writeString(out, packet.srcSocketPath);
+        }
+        break;
+      case 4: // application message
+        writeString(out, packet.message);
+        out.writeInt(packet.flowId);
+        if (packet.bulkKind != 0) {
+          out.writeByte(packet.bulkKind);
+          out.writeInt(packet.bulkRun);
+          out.writeLong(packet.bulkSentNanos);
+        }
+        break;
+      case 5: // database description
+        writeLsaArray(out, packet.lsaArray);
+        writeLsaAges(out, packet.lsaArray);
+        break;
+      case 6: // link state request
+        writeLsaArray(out, packet.lsaArray);
+        break;
+      default: // rejects and anything newer only carry a reason
+        writeString(out, packet.message);
+        break;
+    }
+    out.flush();
+    return bytes.toByteArray();
+  }
+
+  public static SOSPFPacket decode(byte[] body, int offset, int length) throws IOException {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(body, offset, length));
+    SOSPFPacket packet = new SOSPFPacket();
+
+    packet.sospfType = in.readByte();
+    packet.srcProcessIP = readIp(in);
+    packet.srcProcessPort = in.readShort();
+    packet.srcIP = readIp(in);
+    packet.dstIP = readIp(in);
+    packet.routerID = readIp(in);
+
+    switch (packet.sospfType) {
+      case 0:
+        packet.neighborID = readIp(in);
+        packet.linkWeight = in.readInt();
+        if (in.available() >= 1) {
+          packet.keepalive = in.readBoolean();
+        }
+        // only routers listening on a Unix domain socket append it
+        if (in.available() >= 4) {
+          packet.srcSocketPath = readString(in);
+        }
+        break;
+      case 1:
+      case 5:
+        packet.lsaArray = readLsaArray(in);
+        readLsaAges(in, packet.lsaArray);
+        break;
+      case 6:
+        packet.lsaArray = readLsaArray(in);
+        break;
+      case 2:
+        break;
+      case 3:
+        packet.neighborID = readIp(in);
+        packet.linkWeight = in.readInt();
+        packet.message = readString(in);
+        if (in.available() >= 4) {
+          packet.srcSocketPath = readString(in);
+        }
+        break;
+      case 4:
+        packet.message = readString(in);
+        // older senders stop after the message
+        if (in.available() >= 4) {
+          packet.flowId = in.readInt();
+        }
+        // only sendbulk traffic carries the bulk fields
+        if (in.available() >= 13) {
+          packet.bulkKind = in.readByte();
+          packet.bulkRun = in.readInt();
+          packet.bulkSentNanos = in.readLong();
+        }
+        break;
+      default:
+        packet.message = readString(in);
+        break;
+    }
+    return packet;
+  }
+
+  public static void writeLsaArray(DataOutputStream out, Vector<LSA> lsaArray) throws IOException {
+    if (lsaArray == null) {
+      out.writeInt(-1);
+      return;
+    }
+    out.writeInt(lsaArray.size());
+    for (LSA lsa : lsaArray) {
+      writeLsa(out, lsa);
+    }
+  }
+
+  public static Vector<LSA> readLsaArray(DataInputStream in) throws IOException {
+    int count = in.readInt();
+    if (count < 0) {
+      return null;
+    }
+    checkRemaining(in, (long) count * MIN_LSA_BYTES, "LSA count " + count);
+    Vector<LSA> lsaArray = new Vector<LSA>(count);
+    for (int i = 0; i < count; i++) {
+      lsaArray.add(readLsa(in));
+    }
+    return lsaArray;
+  }
+
+  // LSA ages follow the array as one unsigned short each, so decoders that predate them still read the array
+  static void writeLsaAges(DataOutputStream out, Vector<LSA> lsaArray) throws IOException {
+    if (lsaArray == null) {
+      return;
+    }
+    for (LSA lsa : lsaArray) {
+      out.writeShort(Math.min(Math.max(lsa.lsaAge, 0), 0xffff));
+    }
+  }
+
+  // leaves every age at 0 when the sender did not append them
+  static void readLsaAges(DataInputStream in, Vector<LSA> lsaArray) throws IOException {
+    if (lsaArray == null || in.available() < 2 * lsaArray.size()) {
+      return;
+    }
+    for (LSA lsa : lsaArray) {
+      lsa.lsaAge = in.readUnsignedShort();
+    }
+  }
+
+  public static void writeLsa(DataOutputStream out, LSA lsa) throws IOException {
+    writeIp(out, lsa.linkStateID);
+    out.writeInt(lsa.lsaSeqNumber);
+    writeShort(out, lsa.links.size(), 0, 0xffff, "link count");
+    for (LinkDescription ld : lsa.links) {
+      writeIp(out, ld.linkID);
+      writeShort(out, ld.portNum, Short.MIN_VALUE, Short.MAX_VALUE, "port number");
+      writeShort(out, ld.tosMetrics, Short.MIN_VALUE, Short.MAX_VALUE, "TOS metric");
+      out.writeInt(ld.weight);
+    }
+  }
+
+  // Writes an int into a 16-bit field, refusing values it would not read back as
+  private static void writeShort(DataOutputStream out, int value, int min, int max, String field) throws IOException {
+    if (value < min || value > max) {
+      throw new IOException(field + " " + value + " does not fit in 16 bits");
+    }
+    out.writeShort(value);
+  }
+
+  public static LSA readLsa(DataInputStream in) throws IOException {
+    LSA lsa = new LSA();
+    lsa.linkStateID = readIp(in);
+    lsa.lsaSeqNumber = in.readInt();
+    int linkCount = in.readUnsignedShort();
+    checkRemaining(in, (long) linkCount * MIN_LINK_BYTES, "link count " + linkCount);
+    for (int i = 0; i < linkCount; i++) {
+      LinkDescription ld = new LinkDescription();
+      ld.linkID = readIp(in);
+      ld.portNum = in.readShort();
+      ld.tosMetrics = in.readShort();
+      ld.weight = in.readInt();
+      lsa.links.add(ld);
+    }
+    return lsa;
+  }
+
+  static void writeIp(DataOutputStream out, String ip) throws IOException {
+    if (ip == null) {
+      out.writeByte(IP_NULL);
+      return;
+    }
+    long packed = parseIPv4(ip);
+    if (packed >= 0) {
+      out.writeByte(IP_V4);
+      out.writeInt((int) packed);
+    } else {
+      // host names and anything else that is not a dotted quad
+      out.writeByte(IP_TEXT);
+      writeString(out, ip);
+    }
+  }
+
+  static String readIp(DataInputStream in) throws IOException {
+    byte tag = in.readByte();
+    switch (tag) {
+      case IP_NULL:
+        return null;
+      case IP_V4:
+        int ip = in.readInt();
+        return ((ip >>> 24) & 0xff) + "." + ((ip >>> 16) & 0xff) + "." + ((ip >>> 8) & 0xff) + "." + (ip & 0xff);
+      case IP_TEXT:
+        return readString(in);
+      default:
+        throw new IOException("unknown IP tag " + tag);
+    }
+  }
+
+  static void writeString(DataOutputStream out, String value) throws IOException {
+    if (value == null) {
+      out.writeInt(-1);
+      return;
+    }
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  static String readString(DataInputStream in) throws IOException {
+    int length = in.readInt();
+    if (length < 0) {
+      return null;
+    }
+    checkRemaining(in, length, "string length " + length);
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private static void checkRemaining(DataInputStream in, long needed, String field) throws IOException {
+    if (needed > in.available()) {
+      throw new IOException(field + " runs past the end of the body");
+    }
+  }
+
+  // Returns the dotted quad as an unsigned 32 bit value, or -1 if the string is not one
+  static long parseIPv4(String ip) {
+    long value = 0;
+    int octet = -1;
+    int dots = 0;
+    for (int i = 0; i < ip.length(); i++) {
+      char c = ip.charAt(i);
+      if (c >= '0' && c <= '9') {
+        if (octet == 0) {
+          // leading zeros would not survive the round trip back to text
+          return -1;
+        }
+        octet = (octet < 0 ? 0 : octet * 10) + (c - '0');
+        if (octet > 255) {
+          return -1;
+        }
+      } else if (c == '.' && octet >= 0 && dots < 3) {
+        value = (value << 8) | octet;
+        octet = -1;
+        dots++;
+      } else {
+        return -1;
+      }
+    }
+    if (dots != 3 || octet < 0) {
+      return -1;
+    }
+    return (value << 8) | octet;
+  }
+}
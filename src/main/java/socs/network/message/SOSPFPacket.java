@@ -6,9 +6,16 @@ import java.util.concurrent.atomic.AtomicInteger;
 
 public class SOSPFPacket implements Serializable {
 
+  // pinned to the value of the original class so fields can be added without breaking
+  // routers that still use Java serialization (wireFormat = java)
+  private static final long serialVersionUID = 6580322246608127516L;
+
   //for inter-process communication
   public String srcProcessIP;
   public short srcProcessPort;
+  // Unix domain socket the sender also listens on; advertised in HELLO and CONNECT (and their replies)
+  // so a neighbor on the same host can reach it without going through TCP
+  public String srcSocketPath;
 
   //simulated IP address
   public String srcIP;
@@ -16,6 +23,7 @@ public class SOSPFPacket implements Serializable {
 
   //common header
   public short sospfType; //0 - HELLO, 1 - LinkState Update, 2 - Disconnect, 3 - Connect/Force Link Sync, 4 - Application Message
+  // 5 - Database Description (LSA headers), 6 - Link State Request (LSA headers)
   public String routerID;
 
   //used by HELLO message to identify the sender of the message
@@ -23,13 +31,25 @@ public class SOSPFPacket implements Serializable {
   //simulated IP address
   public String neighborID; //neighbor's simulated IP address
 
-  //used by LSAUPDATE
+  //used by LSAUPDATE; database description and link state request carry LSAs without links (headers)
   public Vector<LSA> lsaArray = null;
 
   // used by Application Message
   public String message; //user inputted message payload
+  // messages with the same (srcIP, dstIP, flowId) take the same path when there are equal-cost ones
+  public int flowId;
+  // traffic generated by sendbulk: a probe is echoed back by its destination instead of printed, and the
+  // echo returns the run number and the sender's timestamp unchanged; both travel without console output
+  public static final byte BULK_PROBE = 1;
+  public static final byte BULK_ECHO = 2;
+  public byte bulkKind;
+  public int bulkRun;
+  public long bulkSentNanos;
 
   //used by HELLO attach handshake to communicate the link cost
   public int linkWeight;
 
+  // HELLO sent periodically to a TWO_WAY neighbor to keep its dead timer from running out; not answered
+  public boolean keepalive;
+
 }
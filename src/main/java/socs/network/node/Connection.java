@@ -0,0 +1,30 @@
+package socs.network.node;
+
+import socs.network.message.SOSPFPacket;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * an open connection to a neighbor, as NeighborChannel uses it. Opened by NetworkLayer.dial(): a
+ * PacketConnection over TCP, or an in-process connection in a SimulatedNetwork.
+ */
+interface Connection extends PacketSink, Closeable {
+
+  /**
+   * append a packet without flushing, so a batch of packets can share one flush
+   */
+  void writeBuffered(SOSPFPacket packet) throws IOException;
+
+  void flush() throws IOException;
+
+  /**
+   * the next packet the neighbor sent back on this connection (a reply to HELLO or CONNECT)
+   */
+  SOSPFPacket read() throws IOException, ClassNotFoundException;
+
+  boolean isClosed();
+
+  @Override
+  void close();
+}
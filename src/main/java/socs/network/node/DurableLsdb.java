@@ -0,0 +1,289 @@
+package socs.network.node;
+
+import socs.network.message.LSA;
+import socs.network.message.SOSPFCodec;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * On-disk copy of one router's link state database, so a restarted router starts with the topology it
+ * had and keeps counting its own sequence numbers from where it stopped.
+ * <p/>
+ * Two files under socs.network.router.dataDir/[simulated IP]:
+ * - lsdb.snap: every LSA at the time of the last compaction, written to a temporary file through a
+ * memory mapping and renamed over the old one, and read back through a read-only mapping
+ * - lsdb.log: install and remove records appended since then, each with its length and a CRC32, so a
+ * record torn by a crash is detected and cut off at load
+ * <p/>
+ * Records are idempotent (an install only wins over an older sequence number), so replaying a log over a
+ * snapshot that already contains it is harmless. The log is compacted into a new snapshot once it holds
+ * more records than twice the database size. Appends go to the page cache without fsync; a crashed
+ * process loses nothing, a crashed machine at most the last records. Not thread safe; LinkStateDatabase
+ * calls it under its writer lock.
+ */
+class DurableLsdb {
+
+  private static final int SNAPSHOT_MAGIC = 0x4c534442; // "LSDB"
+  private static final int FORMAT_VERSION = 1;
+  private static final byte RECORD_INSTALL = 1;
+  private static final byte RECORD_REMOVE = 2;
+  private static final int MIN_COMPACTION_RECORDS = 1024;
+
+  /**
+   * an LSA read back from disk with the local clock time at which its age was 0
+   */
+  static final class Entry {
+    final LSA lsa;
+    final long ageBaseMs;
+
+    Entry(LSA lsa, long ageBaseMs) {
+      this.lsa = lsa;
+      this.ageBaseMs = ageBaseMs;
+    }
+  }
+
+  private final Path snapshotFile;
+  private final Path logFile;
+  private FileChannel log;
+  private int logRecords;
+  private final ByteArrayOutputStream recordBytes = new ByteArrayOutputStream(256);
+
+  private DurableLsdb(Path directory) {
+    this.snapshotFile = directory.resolve("lsdb.snap");
+    this.logFile = directory.resolve("lsdb.log");
+  }
+
+  /**
+   * @return the store for this router under dataDir, or null (with a message) if it cannot be used
+   */
+  static DurableLsdb open(String dataDir, String simulatedIP) {
+    try {
+      Path directory = Paths.get(dataDir, simulatedIP);
+      Files.createDirectories(directory);
+      return new DurableLsdb(directory);
+    } catch (IOException | RuntimeException e) {
+      System.err.println("Cannot use " + dataDir + " for the link state database: " + e.getMessage());
+      return null;
+    }
+  }
+
+  /**
+   * read the snapshot and replay the log over it, then open the log for appending
+   *
+   * @return linkStateID => newest instance on disk
+   */
+  Map<String, Entry> load() throws IOException {
+    Map<String, Entry> entries = new HashMap<>();
+    if (Files.exists(snapshotFile)) {
+      readSnapshot(entries);
+    }
+    long validLength = 0;
+    if (Files.exists(logFile)) {
+      validLength = replayLog(entries);
+    }
+    log = FileChannel.open(logFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+    // drop a torn record at the end so new records follow the last good one
+    log.truncate(validLength);
+    log.position(validLength);
+    return entries;
+  }
+
+  void logInstall(LSA lsa, long ageBaseMs) throws IOException {
+    recordBytes.reset();
+    DataOutputStream out = new DataOutputStream(recordBytes);
+    out.writeByte(RECORD_INSTALL);
+    out.writeLong(ageBaseMs);
+    SOSPFCodec.writeLsa(out, lsa);
+    append();
+  }
+
+  void logRemove(String linkStateID, int seqNumber) throws IOException {
+    recordBytes.reset();
+    DataOutputStream out = new DataOutputStream(recordBytes);
+    out.writeByte(RECORD_REMOVE);
+    out.writeUTF(linkStateID);
+    out.writeInt(seqNumber);
+    append();
+  }
+
+  /**
+   * fold the log into a new snapshot of the given LSAs if it has grown past twice their number
+   */
+  void compactIfNeeded(Collection<LSA> current) throws IOException {
+    if (logRecords < Math.max(MIN_COMPACTION_RECORDS, 2 * current.size())) {
+      return;
+    }
+    writeSnapshot(current);
+    log.truncate(0);
+    log.position(0);
+    logRecords = 0;
+  }
+
+  void close() {
+    if (log == null) {
+      return;
+    }
+    try {
+      log.close();
+    } catch (IOException ignored) {
+    }
+  }
+
+  private void append() throws IOException {
+    byte[] body = recordBytes.toByteArray();
+    CRC32 crc = new CRC32();
+    crc.update(body, 0, body.length);
+    ByteBuffer record = ByteBuffer.allocate(8 + body.length);
+    record.putInt(body.length).putInt((int) crc.getValue()).put(body).flip();
+    while (record.hasRemaining()) {
+      log.write(record);
+    }
+    logRecords++;
+  }
+
+  /**
+   * @return the length of the log up to the end of its last intact record. A record that fails its
+   * length or CRC check, is empty (a zero-filled tail after a machine crash passes the CRC), or does not
+   * parse ends the valid log just the same.
+   */
+  private long replayLog(Map<String, Entry> entries) throws IOException {
+    byte[] bytes = Files.readAllBytes(logFile);
+    ByteBuffer buffer = ByteBuffer.wrap(bytes);
+    long valid = 0;
+    while (buffer.remaining() >= 8) {
+      int length = buffer.getInt();
+      int expected = buffer.getInt();
+      if (length <= 0 || length > buffer.remaining()) {
+        break;
+      }
+      CRC32 crc = new CRC32();
+      crc.update(bytes, buffer.position(), length);
+      if ((int) crc.getValue() != expected || !replayRecord(entries, bytes, buffer.position(), length)) {
+        break;
+      }
+      buffer.position(buffer.position() + length);
+      valid = buffer.position();
+      logRecords++;
+    }
+    if (valid < bytes.length) {
+      System.err.println("Discarding " + (bytes.length - valid) + " bytes of incomplete records at the end of " + logFile);
+    }
+    return valid;
+  }
+
+  // Returns false, leaving the entries alone, if the record does not parse
+  private static boolean replayRecord(Map<String, Entry> entries, byte[] bytes, int offset, int length) {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes, offset, length));
+    try {
+      byte type = in.readByte();
+      if (type == RECORD_INSTALL) {
+        long ageBaseMs = in.readLong();
+        apply(entries, new Entry(SOSPFCodec.readLsa(in), ageBaseMs));
+      } else if (type == RECORD_REMOVE) {
+        String id = in.readUTF();
+        int seqNumber = in.readInt();
+        Entry existing = entries.get(id);
+        if (existing != null && existing.lsa.lsaSeqNumber <= seqNumber) {
+          entries.remove(id);
+        }
+      } else {
+        return false;
+      }
+      return true;
+    } catch (IOException | RuntimeException e) {
+      return false;
+    }
+  }
+
+  private static void apply(Map<String, Entry> entries, Entry entry) {
+    Entry existing = entries.get(entry.lsa.linkStateID);
+    if (existing == null || existing.lsa.lsaSeqNumber <= entry.lsa.lsaSeqNumber) {
+      entries.put(entry.lsa.linkStateID, entry);
+    }
+  }
+
+  private void readSnapshot(Map<String, Entry> entries) throws IOException {
+    try (FileChannel channel = FileChannel.open(snapshotFile, StandardOpenOption.READ)) {
+      MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      DataInputStream in = new DataInputStream(new BufferInput(mapped));
+      if (mapped.remaining() < 12 || in.readInt() != SNAPSHOT_MAGIC || in.readInt() != FORMAT_VERSION) {
+        System.err.println("Ignoring " + snapshotFile + ": not a link state database snapshot");
+        return;
+      }
+      int count = in.readInt();
+      for (int i = 0; i < count; i++) {
+        long ageBaseMs = in.readLong();
+        apply(entries, new Entry(SOSPFCodec.readLsa(in), ageBaseMs));
+      }
+    }
+  }
+
+  private void writeSnapshot(Collection<LSA> lsas) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 * lsas.size() + 12);
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeInt(SNAPSHOT_MAGIC);
+    out.writeInt(FORMAT_VERSION);
+    out.writeInt(lsas.size());
+    for (LSA lsa : lsas) {
+      out.writeLong(lsa.ageBaseMs);
+      SOSPFCodec.writeLsa(out, lsa);
+    }
+    byte[] body = bytes.toByteArray();
+
+    Path temporary = snapshotFile.resolveSibling("lsdb.snap.tmp");
+    try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.READ,
+        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, body.length);
+      mapped.put(body);
+      mapped.force();
+    }
+    Files.move(temporary, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  // reads a mapped snapshot in place instead of copying it to the heap first
+  private static final class BufferInput extends InputStream {
+    private final ByteBuffer buffer;
+
+    BufferInput(ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+
+    @Override
+    public int read() {
+      return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] target, int offset, int length) {
+      if (!buffer.hasRemaining()) {
+        return -1;
+      }
+      int n = Math.min(length, buffer.remaining());
+      buffer.get(target, offset, n);
+      return n;
+    }
+
+    // SOSPFCodec bounds what it allocates by this
+    @Override
+    public int available() {
+      return buffer.remaining();
+    }
+  }
+}
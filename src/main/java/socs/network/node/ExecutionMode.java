@@ -0,0 +1,96 @@
+package socs.network.node;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * which kind of thread runs connection handlers and outbound sends.
+ * <p/>
+ * VIRTUAL needs a JDK 21 runtime. The build still targets 1.8, so virtual threads are reached through
+ * reflection and the mode quietly degrades to PLATFORM on older runtimes.
+ */
+enum ExecutionMode {
+  // one platform thread per connection, sends run on the calling thread (the original model)
+  PLATFORM,
+  // one virtual thread per connection and per outbound send
+  VIRTUAL;
+
+  private static final Method OF_VIRTUAL = lookup("java.lang.Thread", "ofVirtual");
+  private static final Method BUILDER_NAME = lookup("java.lang.Thread$Builder", "name", String.class);
+  private static final Method BUILDER_UNSTARTED = lookup("java.lang.Thread$Builder", "unstarted", Runnable.class);
+  private static final Method NEW_VIRTUAL_EXECUTOR = lookup("java.util.concurrent.Executors", "newVirtualThreadPerTaskExecutor");
+
+  static ExecutionMode parse(String value) {
+    if (value == null || value.trim().equalsIgnoreCase("platform")) {
+      return PLATFORM;
+    }
+    if (value.trim().equalsIgnoreCase("virtual")) {
+      if (!virtualThreadsAvailable()) {
+        System.err.println("Virtual threads need Java 21 or newer (running " + System.getProperty("java.version")
+            + "); using platform threads");
+        return PLATFORM;
+      }
+      return VIRTUAL;
+    }
+    throw new IllegalArgumentException("Unknown thread mode: " + value);
+  }
+
+  static boolean virtualThreadsAvailable() {
+    return OF_VIRTUAL != null && BUILDER_NAME != null && BUILDER_UNSTARTED != null && NEW_VIRTUAL_EXECUTOR != null;
+  }
+
+  /**
+   * create an unstarted daemon thread of this mode (virtual threads are always daemons)
+   */
+  Thread newThread(Runnable task, String name) {
+    if (this == VIRTUAL) {
+      try {
+        Object builder = BUILDER_NAME.invoke(OF_VIRTUAL.invoke(null), name);
+        return (Thread) BUILDER_UNSTARTED.invoke(builder, task);
+      } catch (ReflectiveOperationException e) {
+        throw new IllegalStateException("Failed to create virtual thread", e);
+      }
+    }
+    Thread t = new Thread(task, name);
+    t.setDaemon(true);
+    return t;
+  }
+
+  /**
+   * executor for outbound sends; PLATFORM returns null because sends stay on the caller's thread
+   */
+  ExecutorService newSendExecutor() {
+    if (this == VIRTUAL) {
+      try {
+        return (ExecutorService) NEW_VIRTUAL_EXECUTOR.invoke(null);
+      } catch (ReflectiveOperationException e) {
+        throw new IllegalStateException("Failed to create virtual thread executor", e);
+      }
+    }
+    return null;
+  }
+
+  /**
+   * executor for NIO packet handlers: a fixed pool of platform threads, or a virtual thread per task
+   */
+  ExecutorService newWorkerExecutor(int platformThreads, String prefix) {
+    if (this == VIRTUAL) {
+      return newSendExecutor();
+    }
+    final AtomicInteger count = new AtomicInteger();
+    ThreadFactory factory = r -> newThread(r, prefix + "-" + count.getAndIncrement());
+    return Executors.newFixedThreadPool(platformThreads, factory);
+  }
+
+  // Returns null when the running JDK does not have the method
+  private static Method lookup(String className, String name, Class<?>... params) {
+    try {
+      return Class.forName(className).getMethod(name, params);
+    } catch (ClassNotFoundException | NoSuchMethodException e) {
+      return null;
+    }
+  }
+}
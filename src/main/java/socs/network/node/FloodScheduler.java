@@ -0,0 +1,149 @@
+package socs.network.node;
+
+import socs.network.message.LSA;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Paces LSAUPDATE floods for one router.
+ * <p/>
+ * Nothing is sent right away. LSAs for each neighbor are collected for a short coalescing window and then
+ * go out as one LSAUPDATE per neighbor, keeping only the newest copy of each router's LSA. Changes to the
+ * self LSA only mark it dirty; it is originated (sequence number bumped) once per flush, and never more
+ * often than the minimum origination interval, so a burst of local link changes becomes one new LSA.
+ * <p/>
+ * Config: socs.network.router.floodDelay (coalescing window, ms) and socs.network.router.minLsInterval (ms).
+ */
+class FloodScheduler {
+
+  static final long DEFAULT_FLOOD_DELAY_MS = 20;
+  static final long DEFAULT_MIN_LS_INTERVAL_MS = 500;
+
+  private final Router router;
+  private final long floodDelayMs;
+  private final long minLsIntervalMs;
+  private final ScheduledExecutorService timer;
+
+  // neighbor simulated IP => LSAs waiting to be sent to it, one per linkStateID
+  private final Map<String, LinkedHashMap<String, LSA>> pending = new HashMap<>();
+  private boolean selfLsaDirty;
+  private long lastOriginationMs;
+  private ScheduledFuture<?> flushTask;
+
+  FloodScheduler(Router router, long floodDelayMs, long minLsIntervalMs) {
+    this.router = router;
+    this.floodDelayMs = Math.max(0, floodDelayMs);
+    this.minLsIntervalMs = Math.max(0, minLsIntervalMs);
+    this.lastOriginationMs = System.currentTimeMillis() - this.minLsIntervalMs;
+    this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread t = new Thread(r, "router-flood");
+      t.setDaemon(true);
+      return t;
+    });
+  }
+
+  /**
+   * the self LSA was edited; a new instance will be originated and flooded to every TWO_WAY neighbor
+   */
+  synchronized void selfLsaChanged() {
+    selfLsaDirty = true;
+    schedule();
+  }
+
+  /**
+   * queue LSAs for the given neighbors
+   */
+  synchronized void flood(Collection<String> neighborIPs, List<LSA> lsas) {
+    if (lsas.isEmpty()) {
+      return;
+    }
+    for (String neighborIP : neighborIPs) {
+      LinkedHashMap<String, LSA> queued = pending.computeIfAbsent(neighborIP, k -> new LinkedHashMap<>());
+      for (LSA lsa : lsas) {
+        LSA older = queued.get(lsa.linkStateID);
+        if (older == null || lsa.lsaSeqNumber >= older.lsaSeqNumber) {
+          queued.put(lsa.linkStateID, lsa);
+        }
+      }
+    }
+    schedule();
+  }
+
+  /**
+   * run a task on the flood thread after a delay; dropped once the scheduler is shut down
+   */
+  void later(Runnable task, long delayMs) {
+    try {
+      timer.schedule(task, delayMs, TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException ignored) {
+    }
+  }
+
+  void shutdown() {
+    timer.shutdownNow();
+  }
+
+  private void schedule() {
+    if (flushTask != null || timer.isShutdown()) {
+      return;
+    }
+    long delay = floodDelayMs;
+    if (selfLsaDirty) {
+      delay = Math.max(delay, lastOriginationMs + minLsIntervalMs - System.currentTimeMillis());
+    }
+    flushTask = timer.schedule(this::flush, delay, TimeUnit.MILLISECONDS);
+  }
+
+  private void flush() {
+    Map<String, LinkedHashMap<String, LSA>> batch;
+    boolean originate = false;
+    boolean holdSelf;
+    synchronized (this) {
+      flushTask = null;
+      long now = System.currentTimeMillis();
+      if (selfLsaDirty && now - lastOriginationMs >= minLsIntervalMs) {
+        selfLsaDirty = false;
+        lastOriginationMs = now;
+        originate = true;
+      }
+      holdSelf = selfLsaDirty;
+      batch = new HashMap<>(pending);
+      pending.clear();
+    }
+
+    String selfId = router.rd.simulatedIPAddress;
+    if (originate) {
+      LSA self = router.originateSelfLsa();
+      for (String neighborIP : router.twoWayNeighborIPs()) {
+        batch.computeIfAbsent(neighborIP, k -> new LinkedHashMap<>()).put(selfId, self);
+      }
+    } else if (holdSelf) {
+      // a held-back self LSA goes out with its origination, under its new sequence number
+      for (LinkedHashMap<String, LSA> queued : batch.values()) {
+        queued.remove(selfId);
+      }
+    }
+
+    for (Map.Entry<String, LinkedHashMap<String, LSA>> entry : batch.entrySet()) {
+      if (!entry.getValue().isEmpty()) {
+        router.sendLsaUpdate(entry.getKey(), new ArrayList<>(entry.getValue().values()));
+      }
+    }
+
+    synchronized (this) {
+      if (selfLsaDirty || !pending.isEmpty()) {
+        schedule();
+      }
+    }
+  }
+}
@@ -0,0 +1,89 @@
+package socs.network.node;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * destination simulated IP => links to the equal-cost next-hop neighbors, derived from one ShortestPathTree.
+ * <p/>
+ * Built once per shortest path tree version so forwarding an application message is a single hash
+ * lookup instead of a Dijkstra run per hop. When a destination has several next hops, one is picked by
+ * hashing (source, destination, flow id): every packet of a flow takes the same path, so it stays in
+ * order, while different flows spread over all of them. The hash is seeded with this router's IP so
+ * routers along the path do not all make the same choice among their own equal-cost sets.
+ */
+class ForwardingTable {
+
+  // version of the tree this table was built from
+  final long version;
+  private final int seed;
+  // next hops are in the tree's order (router index, never reused), so a flow keeps its link when the
+  // table is rebuilt
+  private final Map<String, Link[]> nextHops;
+
+  private ForwardingTable(long version, int seed, Map<String, Link[]> nextHops) {
+    this.version = version;
+    this.seed = seed;
+    this.nextHops = nextHops;
+  }
+
+  static ForwardingTable build(ShortestPathTree tree, NeighborTable neighbors) {
+    Map<String, Link[]> nextHops = new HashMap<>();
+    // destinations with the same hop set usually share one array in the tree, and then one here
+    Map<int[], Link[]> shared = new IdentityHashMap<>();
+    List<Link> links = new ArrayList<>();
+    for (int v = 0; v < tree.size(); v++) {
+      int[] set = tree.hops(v);
+      if (set == null || set.length == 0) {
+        continue;
+      }
+      Link[] hops = shared.get(set);
+      if (hops == null) {
+        links.clear();
+        for (int hop : set) {
+          Link link = neighbors.get(tree.id(hop));
+          if (link != null) {
+            links.add(link);
+          }
+        }
+        hops = links.toArray(new Link[0]);
+        shared.put(set, hops);
+      }
+      if (hops.length > 0) {
+        nextHops.put(tree.id(v), hops);
+      }
+    }
+    return new ForwardingTable(tree.version, tree.sourceIP.hashCode(), nextHops);
+  }
+
+  /**
+   * @return the link towards the destination for this flow, or null if there is none
+   */
+  Link lookup(String sourceIP, String destinationIP, int flowId) {
+    Link[] hops = nextHops.get(destinationIP);
+    if (hops == null) {
+      return null;
+    }
+    if (hops.length == 1) {
+      return hops[0];
+    }
+    return hops[Math.floorMod(flowHash(sourceIP, destinationIP, flowId), hops.length)];
+  }
+
+  private int flowHash(String sourceIP, String destinationIP, int flowId) {
+    int h = seed;
+    h = 31 * h + (sourceIP == null ? 0 : sourceIP.hashCode());
+    h = 31 * h + destinationIP.hashCode();
+    h = 31 * h + flowId;
+    // murmur3 finalizer, so nearby flow ids land on different links
+    h ^= h >>> 16;
+    h *= 0x85ebca6b;
+    h ^= h >>> 13;
+    h *= 0xc2b2ae35;
+    h ^= h >>> 16;
+    return h;
+  }
+}
@@ -0,0 +1,441 @@
+package socs.network.node;
+
+import socs.network.message.LSA;
+import socs.network.message.LinkDescription;
+
+import java.util.Arrays;
+
+/**
+ * Shortest path tree rooted at this router that is repaired in place as LSAs change.
+ * <p/>
+ * LSAs are applied to a WeighedGraph, which reports every usable edge that changed. Each change is
+ * repaired on its own:
+ * - an edge off the tree that got worse, or that does not beat the current distance of its head, is ignored
+ * unless it adds or removes an equal-cost path, which only marks the tree as changed
+ * - an edge that got better (or appeared) lowers the head and Dijkstra relaxes outwards from there only
+ * - a tree edge that got worse (or disappeared) drops the subtree below it, reseeds each of those routers
+ * from its best neighbor outside the subtree and re-runs Dijkstra over the subtree. When the subtree is
+ * most of the tree, one full run over the graph's CSR arrays is cheaper and is done instead.
+ * <p/>
+ * Distances, parents and the children lists are int arrays indexed by the graph's router indices, and
+ * every Dijkstra run shares one IndexedMinHeap, so a repair allocates nothing once the arrays have grown.
+ * Routers a repair touched are remembered, and snapshot() copies only their pages into the published tree.
+ * Not thread safe; LinkStateDatabase calls it under its own lock.
+ */
+class IncrementalShortestPath implements WeighedGraph.EdgeListener {
+
+  static final int UNREACHABLE = Integer.MAX_VALUE;
+  private static final int[] NO_HOPS = new int[0];
+
+  private final WeighedGraph graph = new WeighedGraph();
+  private final int source;
+
+  private int[] distance = new int[0];
+  private int[] parent = new int[0];
+  // children of each node as a doubly linked list, so re-parenting is O(1)
+  private int[] firstChild = new int[0];
+  private int[] nextSibling = new int[0];
+  private int[] prevSibling = new int[0];
+  // scratch stack for subtree walks
+  private int[] work = new int[0];
+  // shared by every Dijkstra run; always empty between runs
+  private final IndexedMinHeap heap = new IndexedMinHeap();
+
+  // scratch for turning an LSA into index arrays
+  private int[] linkTo = new int[8];
+  private int[] linkWeight = new int[8];
+
+  // first hops of every reachable node (see updateHops), null for unreachable ones
+  private int[][] hops = new int[0][];
+  // nodes whose distance, parent or first hops changed since the last snapshot, or that gained or lost
+  // an equal-cost path
+  private int[] changed = new int[0];
+  private boolean[] isChanged = new boolean[0];
+  private int changedCount;
+  // the published copy of distance, parent and hops in pages of ShortestPathTree.PAGE nodes. A page
+  // still referenced by the last published tree is copied before it is written.
+  private int[][] distancePages = new int[0][];
+  private int[][] parentPages = new int[0][];
+  private int[][][] hopPages = new int[0][][];
+  private boolean[] pageShared = new boolean[0];
+
+  private boolean treeChanged;
+  // number of nodes with a finite distance
+  private int reachable;
+
+  IncrementalShortestPath(String sourceIP) {
+    source = graph.intern(sourceIP);
+    ensureCapacity();
+    setDistance(source, 0);
+    hops[source] = NO_HOPS;
+  }
+
+  WeighedGraph graph() {
+    return graph;
+  }
+
+  /**
+   * apply the current contents of an LSA
+   *
+   * @return true if any distance or parent in the tree changed
+   */
+  boolean update(LSA lsa) {
+    treeChanged = false;
+    int router = graph.intern(lsa.linkStateID);
+    int count = 0;
+    if (lsa.links != null) {
+      if (linkTo.length < lsa.links.size()) {
+        linkTo = new int[lsa.links.size()];
+        linkWeight = new int[lsa.links.size()];
+      }
+      for (LinkDescription ld : lsa.links) {
+        if (ld == null || ld.linkID == null) {
+          continue;
+        }
+        linkTo[count] = graph.intern(ld.linkID);
+        linkWeight[count] = ld.weight;
+        count++;
+      }
+    }
+    ensureCapacity();
+    graph.setAdvertised(router, linkTo, linkWeight, count, this);
+    return treeChanged;
+  }
+
+  /**
+   * publish the current tree as an immutable ShortestPathTree
+   * <p/>
+   * Only the pages holding routers that changed since the last snapshot are copied; the tree shares
+   * the rest with the one published before.
+   */
+  ShortestPathTree snapshot(long version) {
+    updateHops();
+    for (int k = 0; k < changedCount; k++) {
+      int v = changed[k];
+      isChanged[v] = false;
+      int page = v >>> ShortestPathTree.PAGE_BITS;
+      int slot = v & (ShortestPathTree.PAGE - 1);
+      if (pageShared[page]) {
+        distancePages[page] = distancePages[page].clone();
+        parentPages[page] = parentPages[page].clone();
+        hopPages[page] = hopPages[page].clone();
+        pageShared[page] = false;
+      }
+      distancePages[page][slot] = distance[v];
+      parentPages[page][slot] = parent[v];
+      hopPages[page][slot] = hops[v];
+    }
+    changedCount = 0;
+    int n = graph.size();
+    int pages = (n + ShortestPathTree.PAGE - 1) >>> ShortestPathTree.PAGE_BITS;
+    Arrays.fill(pageShared, 0, pages, true);
+    return new ShortestPathTree(graph.id(source), version, source, n, graph.ids(), graph.index(),
+        Arrays.copyOf(distancePages, pages), Arrays.copyOf(parentPages, pages), Arrays.copyOf(hopPages, pages));
+  }
+
+  /**
+   * bring the equal-cost first hops up to date. Only one parent per router is kept while repairing, so a
+   * router's first hops are the union over every neighbor that lies on a shortest path to it (distance +
+   * edge weight == its own distance) of that neighbor's first hops.
+   * <p/>
+   * Only routers a repair touched can have new first hops: the changed routers themselves, their
+   * successors (whose equal-cost neighbors may have changed with them), and downstream of any router whose
+   * first hops turn out different. Those are visited in order of distance from the shared heap.
+   */
+  private void updateHops() {
+    int seeds = changedCount;
+    for (int k = 0; k < seeds; k++) {
+      int v = changed[k];
+      offerHops(v);
+      if (distance[v] == UNREACHABLE) {
+        continue;
+      }
+      int[] to = graph.outTo[v];
+      for (int e = 0; e < graph.outDegree[v]; e++) {
+        offerHops(to[e]);
+      }
+    }
+    while (!heap.isEmpty()) {
+      int v = heap.poll();
+      if (v == source || !setHops(v, firstHops(v))) {
+        continue;
+      }
+      int dv = distance[v];
+      int[] to = graph.outTo[v];
+      int[] weights = graph.outWeight[v];
+      for (int e = 0; e < graph.outDegree[v]; e++) {
+        if (dv + weights[e] == distance[to[e]]) {
+          heap.offer(to[e], distance[to[e]]);
+        }
+      }
+    }
+  }
+
+  // queue a reachable node for updateHops; an unreachable one just loses its first hops
+  private void offerHops(int v) {
+    if (distance[v] != UNREACHABLE) {
+      heap.offer(v, distance[v]);
+    } else if (hops[v] != null) {
+      hops[v] = null;
+      markChanged(v);
+    }
+  }
+
+  // union of the first hops of every neighbor on a shortest path to v
+  private int[] firstHops(int v) {
+    int[] set = NO_HOPS;
+    int[] from = graph.inFrom[v];
+    int[] weights = graph.inWeight[v];
+    for (int e = 0; e < graph.inDegree[v]; e++) {
+      int p = from[e];
+      if (distance[p] == UNREACHABLE || distance[p] + weights[e] != distance[v]) {
+        continue;
+      }
+      if (p == source) {
+        set = union(set, new int[]{v});
+      } else if (hops[p] != null) {
+        set = union(set, hops[p]);
+      }
+    }
+    return set;
+  }
+
+  // Returns true if the node's first hops changed
+  private boolean setHops(int v, int[] set) {
+    if (Arrays.equals(set, hops[v])) {
+      return false;
+    }
+    hops[v] = set;
+    markChanged(v);
+    return true;
+  }
+
+  private void markChanged(int node) {
+    if (!isChanged[node]) {
+      isChanged[node] = true;
+      changed[changedCount++] = node;
+    }
+  }
+
+  // union of two sorted index arrays; returns one of the inputs when it already covers the other
+  private static int[] union(int[] a, int[] b) {
+    int[] merged = new int[a.length + b.length];
+    int i = 0;
+    int j = 0;
+    int size = 0;
+    while (i < a.length || j < b.length) {
+      if (j == b.length || (i < a.length && a[i] < b[j])) {
+        merged[size++] = a[i++];
+      } else if (i == a.length || b[j] < a[i]) {
+        merged[size++] = b[j++];
+      } else {
+        merged[size++] = a[i++];
+        j++;
+      }
+    }
+    if (size == a.length) {
+      return a;
+    }
+    if (size == b.length) {
+      return b;
+    }
+    return size == merged.length ? merged : Arrays.copyOf(merged, size);
+  }
+
+  @Override
+  public void edgeChanged(int u, int v, int oldWeight, int newWeight) {
+    int du = distance[u];
+    if (du == UNREACHABLE) {
+      // the tail is unreachable, so the edge is neither on the tree nor able to improve it
+      return;
+    }
+    boolean improved = newWeight != WeighedGraph.NO_EDGE && (oldWeight == WeighedGraph.NO_EDGE || newWeight < oldWeight);
+    if (parent[v] == u) {
+      if (improved) {
+        lower(v, u, du + newWeight);
+      } else {
+        invalidateSubtree(v);
+      }
+    } else if (improved && du + newWeight < distance[v]) {
+      lower(v, u, du + newWeight);
+    } else if (onEqualCostPath(du, oldWeight, distance[v]) || onEqualCostPath(du, newWeight, distance[v])) {
+      // no distance moves, but an equal-cost path to v appeared or went away, so its first hops may differ
+      treeChanged = true;
+      markChanged(v);
+    }
+  }
+
+  private static boolean onEqualCostPath(int tailDistance, int weight, int headDistance) {
+    return weight != WeighedGraph.NO_EDGE && headDistance != UNREACHABLE && tailDistance + weight == headDistance;
+  }
+
+  private void lower(int node, int via, int newDistance) {
+    setParent(node, via);
+    setDistance(node, newDistance);
+    heap.offer(node, newDistance);
+    relax();
+  }
+
+  private void invalidateSubtree(int root) {
+    treeChanged = true;
+    // collect the subtree into work[0 .. size)
+    int size = 0;
+    work[size++] = root;
+    for (int k = 0; k < size; k++) {
+      for (int c = firstChild[work[k]]; c >= 0; c = nextSibling[c]) {
+        work[size++] = c;
+      }
+    }
+    if (size * 2 > reachable) {
+      recomputeAll();
+      return;
+    }
+    for (int k = 0; k < size; k++) {
+      setDistance(work[k], UNREACHABLE);
+      setParent(work[k], -1);
+    }
+
+    // reseed each detached router from its best remaining neighbor, then let Dijkstra settle the rest
+    for (int k = 0; k < size; k++) {
+      int id = work[k];
+      int[] from = graph.inFrom[id];
+      int[] weights = graph.inWeight[id];
+      int bestParent = -1;
+      int best = UNREACHABLE;
+      for (int e = 0; e < graph.inDegree[id]; e++) {
+        int dp = distance[from[e]];
+        if (dp != UNREACHABLE && dp + weights[e] < best) {
+          best = dp + weights[e];
+          bestParent = from[e];
+        }
+      }
+      if (bestParent >= 0) {
+        setParent(id, bestParent);
+        setDistance(id, best);
+        heap.offer(id, best);
+      }
+    }
+    relax();
+  }
+
+  private void relax() {
+    treeChanged = true;
+    while (!heap.isEmpty()) {
+      int u = heap.poll();
+      int du = distance[u];
+      int[] to = graph.outTo[u];
+      int[] weights = graph.outWeight[u];
+      for (int e = 0; e < graph.outDegree[u]; e++) {
+        int next = to[e];
+        int nextDist = du + weights[e];
+        if (nextDist < distance[next]) {
+          setParent(next, u);
+          setDistance(next, nextDist);
+          heap.offer(next, nextDist);
+        }
+      }
+    }
+  }
+
+  // Dijkstra from scratch over the CSR arrays
+  private void recomputeAll() {
+    treeChanged = true;
+    WeighedGraph.Csr csr = graph.csr();
+    int n = csr.nodeCount();
+    csr.shortestPaths(source, distance, parent, heap);
+    Arrays.fill(firstChild, 0, n, -1);
+    reachable = 0;
+    for (int v = 0; v < n; v++) {
+      if (distance[v] != UNREACHABLE) {
+        reachable++;
+      }
+      markChanged(v);
+    }
+    for (int v = 0; v < n; v++) {
+      if (parent[v] >= 0) {
+        linkChild(v, parent[v]);
+      }
+    }
+  }
+
+  private void setDistance(int node, int dist) {
+    if (distance[node] != dist) {
+      markChanged(node);
+    }
+    if (distance[node] == UNREACHABLE && dist != UNREACHABLE) {
+      reachable++;
+    } else if (distance[node] != UNREACHABLE && dist == UNREACHABLE) {
+      reachable--;
+    }
+    distance[node] = dist;
+  }
+
+  private void setParent(int node, int newParent) {
+    int old = parent[node];
+    if (old != newParent) {
+      markChanged(node);
+    }
+    if (old >= 0) {
+      int prev = prevSibling[node];
+      int next = nextSibling[node];
+      if (prev >= 0) {
+        nextSibling[prev] = next;
+      } else {
+        firstChild[old] = next;
+      }
+      if (next >= 0) {
+        prevSibling[next] = prev;
+      }
+    }
+    parent[node] = newParent;
+    if (newParent >= 0) {
+      linkChild(node, newParent);
+    }
+  }
+
+  private void linkChild(int node, int newParent) {
+    int head = firstChild[newParent];
+    prevSibling[node] = -1;
+    nextSibling[node] = head;
+    if (head >= 0) {
+      prevSibling[head] = node;
+    }
+    firstChild[newParent] = node;
+  }
+
+  private void ensureCapacity() {
+    int capacity = graph.capacity();
+    if (distance.length >= capacity) {
+      return;
+    }
+    int old = distance.length;
+    distance = Arrays.copyOf(distance, capacity);
+    parent = Arrays.copyOf(parent, capacity);
+    firstChild = Arrays.copyOf(firstChild, capacity);
+    nextSibling = Arrays.copyOf(nextSibling, capacity);
+    prevSibling = Arrays.copyOf(prevSibling, capacity);
+    work = new int[capacity];
+    hops = Arrays.copyOf(hops, capacity);
+    changed = Arrays.copyOf(changed, capacity);
+    isChanged = Arrays.copyOf(isChanged, capacity);
+    heap.ensureCapacity(capacity);
+    int oldPages = distancePages.length;
+    int pages = (capacity + ShortestPathTree.PAGE - 1) >>> ShortestPathTree.PAGE_BITS;
+    distancePages = Arrays.copyOf(distancePages, pages);
+    parentPages = Arrays.copyOf(parentPages, pages);
+    hopPages = Arrays.copyOf(hopPages, pages);
+    pageShared = Arrays.copyOf(pageShared, pages);
+    for (int page = oldPages; page < pages; page++) {
+      distancePages[page] = new int[ShortestPathTree.PAGE];
+      parentPages[page] = new int[ShortestPathTree.PAGE];
+      hopPages[page] = new int[ShortestPathTree.PAGE][];
+      Arrays.fill(distancePages[page], UNREACHABLE);
+      Arrays.fill(parentPages[page], -1);
+    }
+    Arrays.fill(distance, old, capacity, UNREACHABLE);
+    Arrays.fill(parent, old, capacity, -1);
+    Arrays.fill(firstChild, old, capacity, -1);
+    Arrays.fill(nextSibling, old, capacity, -1);
+    Arrays.fill(prevSibling, old, capacity, -1);
+  }
+}
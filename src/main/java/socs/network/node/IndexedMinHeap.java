@@ -0,0 +1,112 @@
+package socs.network.node;
+
+import java.util.Arrays;
+
+/**
+ * Binary min-heap of node indices keyed by int distance, with decrease-key.
+ * <p/>
+ * Every node is in the heap at most once, so its size is bounded by the node count and Dijkstra needs
+ * no stale-entry checks. All storage is int arrays that are reused between runs; nothing is allocated
+ * per push or pop once the capacity covers the graph.
+ */
+class IndexedMinHeap {
+
+  private int[] heap = new int[0];
+  // node => its slot in heap, -1 when not queued
+  private int[] position = new int[0];
+  private int[] key = new int[0];
+  private int size;
+
+  void ensureCapacity(int nodes) {
+    if (position.length >= nodes) {
+      return;
+    }
+    int old = position.length;
+    heap = Arrays.copyOf(heap, nodes);
+    key = Arrays.copyOf(key, nodes);
+    position = Arrays.copyOf(position, nodes);
+    Arrays.fill(position, old, nodes, -1);
+  }
+
+  boolean isEmpty() {
+    return size == 0;
+  }
+
+  // only resets the slots in use, so clearing a nearly empty heap over a big graph is cheap
+  void clear() {
+    for (int i = 0; i < size; i++) {
+      position[heap[i]] = -1;
+    }
+    size = 0;
+  }
+
+  /**
+   * queue the node with the given key, or lower its key if it is already queued with a larger one
+   */
+  void offer(int node, int newKey) {
+    int slot = position[node];
+    if (slot < 0) {
+      slot = size++;
+      heap[slot] = node;
+      position[node] = slot;
+    } else if (newKey >= key[node]) {
+      return;
+    }
+    key[node] = newKey;
+    siftUp(slot);
+  }
+
+  /**
+   * @return the node with the smallest key, removing it
+   */
+  int poll() {
+    int top = heap[0];
+    position[top] = -1;
+    size--;
+    if (size > 0) {
+      int last = heap[size];
+      heap[0] = last;
+      position[last] = 0;
+      siftDown(0);
+    }
+    return top;
+  }
+
+  private void siftUp(int slot) {
+    int node = heap[slot];
+    int k = key[node];
+    while (slot > 0) {
+      int parentSlot = (slot - 1) >>> 1;
+      int parent = heap[parentSlot];
+      if (key[parent] <= k) {
+        break;
+      }
+      heap[slot] = parent;
+      position[parent] = slot;
+      slot = parentSlot;
+    }
+    heap[slot] = node;
+    position[node] = slot;
+  }
+
+  private void siftDown(int slot) {
+    int node = heap[slot];
+    int k = key[node];
+    int half = size >>> 1;
+    while (slot < half) {
+      int child = 2 * slot + 1;
+      int right = child + 1;
+      if (right < size && key[heap[right]] < key[heap[child]]) {
+        child = right;
+      }
+      if (k <= key[heap[child]]) {
+        break;
+      }
+      heap[slot] = heap[child];
+      position[heap[slot]] = slot;
+      slot = child;
+    }
+    heap[slot] = node;
+    position[node] = slot;
+  }
+}
@@ -0,0 +1,128 @@
+package socs.network.node;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Neighbor liveness for one router.
+ * <p/>
+ * Every hello interval a keepalive HELLO goes to each TWO_WAY neighbor. Each TWO_WAY link has a dead
+ * timer that is pushed back whenever a HELLO or LSAUPDATE arrives from that neighbor; if it runs out
+ * the neighbor is declared dead and torn down as if it had sent a DISCONNECT. All timers share one
+ * TimerWheel, and the teardowns run on a single worker thread.
+ * <p/>
+ * Keepalives are only posted from that thread and written by a separate sender, so a neighbor that stops
+ * reading can hold up its own keepalives but never the dead timers. A write still blocked when the next
+ * round is due is aborted by closing its connection.
+ * <p/>
+ * Config: socs.network.router.helloInterval (ms, 0 turns keepalives off) and
+ * socs.network.router.deadInterval (ms, default four hello intervals).
+ */
+class Keepalive {
+
+  static final long DEFAULT_HELLO_INTERVAL_MS = 2000;
+  static final int DEAD_INTERVAL_HELLOS = 4;
+  private static final long TICK_MS = 50;
+  private static final int WHEEL_SIZE = 512;
+
+  private final Router router;
+  private final long helloIntervalMs;
+  private final long deadIntervalMs;
+  private final ExecutorService worker;
+  private final ExecutorService sender;
+  private final TimerWheel wheel;
+  private final ConcurrentHashMap<Link, TimerWheel.Timeout> deadTimers = new ConcurrentHashMap<>();
+
+  Keepalive(Router router, long helloIntervalMs, long deadIntervalMs) {
+    this.router = router;
+    this.helloIntervalMs = helloIntervalMs;
+    this.deadIntervalMs = deadIntervalMs;
+    if (!enabled()) {
+      worker = null;
+      sender = null;
+      wheel = null;
+      return;
+    }
+    worker = Executors.newSingleThreadExecutor(r -> {
+      Thread t = new Thread(r, "router-keepalive");
+      t.setDaemon(true);
+      return t;
+    });
+    // one thread per neighbor at most, since each channel drains its keepalives one batch at a time
+    sender = Executors.newCachedThreadPool(r -> {
+      Thread t = new Thread(r, "router-keepalive-send");
+      t.setDaemon(true);
+      return t;
+    });
+    wheel = new TimerWheel("router-timer", TICK_MS, WHEEL_SIZE, worker);
+    wheel.schedule(this::sendHellos, helloIntervalMs);
+  }
+
+  boolean enabled() {
+    return helloIntervalMs > 0;
+  }
+
+  long deadIntervalMs() {
+    return deadIntervalMs;
+  }
+
+  /**
+   * the neighbor on this TWO_WAY link was just heard from; (re)start its dead timer
+   */
+  void heard(Link link) {
+    if (!enabled()) {
+      return;
+    }
+    TimerWheel.Timeout timer = deadTimers.get(link);
+    if (timer == null) {
+      TimerWheel.Timeout created = wheel.schedule(() -> expired(link), deadIntervalMs);
+      timer = deadTimers.putIfAbsent(link, created);
+      if (timer == null) {
+        return;
+      }
+      created.cancel();
+    }
+    timer.reschedule(deadIntervalMs);
+  }
+
+  /**
+   * the link was removed; drop its dead timer
+   */
+  void forget(Link link) {
+    if (!enabled()) {
+      return;
+    }
+    TimerWheel.Timeout timer = deadTimers.remove(link);
+    if (timer != null) {
+      timer.cancel();
+    }
+  }
+
+  void shutdown() {
+    if (!enabled()) {
+      return;
+    }
+    wheel.stop();
+    worker.shutdownNow();
+    sender.shutdownNow();
+  }
+
+  private void expired(Link link) {
+    TimerWheel.Timeout timer = deadTimers.get(link);
+    // a HELLO that arrived while this expiry was queued has already re-armed the timer
+    if (timer != null && !timer.pending() && deadTimers.remove(link, timer)) {
+      router.neighborDead(link, deadIntervalMs);
+    }
+  }
+
+  private void sendHellos() {
+    try {
+      for (String neighborIP : router.twoWayNeighborIPs()) {
+        router.sendKeepalive(neighborIP, sender, helloIntervalMs);
+      }
+    } finally {
+      wheel.schedule(this::sendHellos, helloIntervalMs);
+    }
+  }
+}
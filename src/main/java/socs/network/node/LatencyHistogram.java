@@ -0,0 +1,84 @@
+package socs.network.node;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Log-linear histogram of latencies in nanoseconds, in the manner of HdrHistogram.
+ * <p/>
+ * Each power of two is split into 32 equal sub-buckets, so a value is kept to within about 3% in one
+ * fixed array of counters covering the whole long range. Recording is a single counter increment with
+ * no allocation or lock, from any thread; percentiles are read off the counters afterwards and reported
+ * as the upper end of their bucket.
+ */
+class LatencyHistogram {
+
+  private static final int SUB_BITS = 5;
+  private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+  // values below 2 * SUB_BUCKETS get a counter each; above that, SUB_BUCKETS counters per power of two
+  private final AtomicLongArray counts = new AtomicLongArray((64 - SUB_BITS) * SUB_BUCKETS);
+  private final LongAdder total = new LongAdder();
+  private final LongAdder sum = new LongAdder();
+  private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+  void record(long nanos) {
+    long value = Math.max(0, nanos);
+    counts.incrementAndGet(index(value));
+    total.increment();
+    sum.add(value);
+    max.accumulate(value);
+  }
+
+  long count() {
+    return total.sum();
+  }
+
+  long max() {
+    return max.get();
+  }
+
+  double mean() {
+    long n = total.sum();
+    return n == 0 ? 0 : (double) sum.sum() / n;
+  }
+
+  /**
+   * @param percent e.g. 99.9
+   * @return the smallest recorded bucket bound that at least percent of the values fall under
+   */
+  long percentile(double percent) {
+    long n = total.sum();
+    if (n == 0) {
+      return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(percent / 100.0 * n));
+    long seen = 0;
+    for (int i = 0; i < counts.length(); i++) {
+      seen += counts.get(i);
+      if (seen >= rank) {
+        return Math.min(upperBound(i), max.get());
+      }
+    }
+    return max.get();
+  }
+
+  private static int index(long value) {
+    if (value < 2 * SUB_BUCKETS) {
+      return (int) value;
+    }
+    int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+    int sub = (int) (value >>> shift) - SUB_BUCKETS;
+    return (shift + 1) * SUB_BUCKETS + sub;
+  }
+
+  private static long upperBound(int index) {
+    if (index < 2 * SUB_BUCKETS) {
+      return index;
+    }
+    int shift = index / SUB_BUCKETS - 1;
+    long sub = index % SUB_BUCKETS + SUB_BUCKETS;
+    return ((sub + 1) << shift) - 1;
+  }
+}
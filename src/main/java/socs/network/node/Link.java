@@ -1,5 +1,8 @@
 package socs.network.node;
 
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
 public class Link {
 
   RouterDescription router1;
@@ -7,10 +10,25 @@ public class Link {
   int portNum;
   int weight;
 
+  // persistent connection to router2, reused for every packet sent over this link
+  volatile NeighborChannel channel;
+  // second connection to router2 for application messages, so bulk data never waits behind a HELLO
+  // exchange and vice versa; set when the link is added to a router
+  volatile NeighborChannel data;
+
+  // database exchange with router2: whether its summary arrived, and the LSAs requested from it since
+  volatile boolean summaryReceived;
+  final Map<String, Integer> requested = new ConcurrentHashMap<>();
+
   public Link(RouterDescription r1, RouterDescription r2, int portNum, int weight) {
+    this(r1, r2, portNum, weight, new NeighborChannel(r2, WireFormat.BINARY));
+  }
+
+  Link(RouterDescription r1, RouterDescription r2, int portNum, int weight, NeighborChannel channel) {
     router1 = r1;
     router2 = r2;
     this.portNum = portNum;
     this.weight = weight;
+    this.channel = channel;
   }
 }
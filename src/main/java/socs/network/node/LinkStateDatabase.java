@@ -3,25 +3,139 @@ package socs.network.node;
 import socs.network.message.LSA;
 import socs.network.message.LinkDescription;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Comparator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.PriorityQueue;
-import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * This router's link state database.
+ * <p/>
+ * Readers never lock: every change publishes a new immutable Snapshot (LSAs plus the shortest path
+ * tree for them) through a volatile field, so detect, flooding and neighbors all see one consistent
+ * version. Writers are serialized among themselves and never modify an LSA that was published; the self
+ * LSA is edited on a copy. Both halves of a snapshot are published copy-on-write in pages (LsaStore and
+ * ShortestPathTree), so a new snapshot costs the routers that changed rather than the database size.
+ * <p/>
+ * LSAs age: every installed instance remembers when its age was 0 (its age on arrival is subtracted),
+ * and purgeMaxAge() removes the ones that reached MaxAge without being replaced. Pending expiries sit in
+ * one queue ordered by expiry time, so a sweep only looks at the LSAs that are actually due.
+ * <p/>
+ * With a DurableLsdb every install, removal and self origination is also written to disk, and the
+ * database starts from what was stored: other routers' LSAs that have not aged out, and the sequence
+ * number of the self LSA, so the first LSA after a restart beats the copies still in the network.
+ */
 public class LinkStateDatabase {
 
-  // linkID => LSA instance
-  HashMap<String, LSA> _store = new HashMap<>();
+  // seconds, as in OSPF
+  static final int DEFAULT_MAX_AGE = 3600;
+
+  // when an installed instance reaches MaxAge, unless it has been replaced by then
+  private static final class Expiry {
+    final long atMs;
+    final LSA lsa;
+
+    Expiry(long atMs, LSA lsa) {
+      this.atMs = atMs;
+      this.lsa = lsa;
+    }
+  }
+
+  /**
+   * one published version of the database; nothing in it is modified after publication
+   */
+  static final class Snapshot {
+    final long version;
+    // linkID => LSA instance
+    final Map<String, LSA> store;
+    final ShortestPathTree tree;
+    // System.nanoTime() when published; a Simulation times convergence by the last one
+    final long publishedNanos = System.nanoTime();
+    // packed topology for SPF from other routers, built on first use
+    private volatile WeighedGraph.Csr csr;
+
+    Snapshot(long version, Map<String, LSA> store, ShortestPathTree tree) {
+      this.version = version;
+      this.store = store;
+      this.tree = tree;
+    }
+
+    WeighedGraph.Csr csr() {
+      WeighedGraph.Csr packed = csr;
+      if (packed == null) {
+        // two readers may both build it; the results are identical
+        packed = WeighedGraph.csrOf(store.values());
+        csr = packed;
+      }
+      return packed;
+    }
+  }
 
   private RouterDescription rd = null;
+  private final int maxAge;
+
+  private volatile Snapshot snapshot;
+
+  // writer state, only touched under the lock
+  private final IncrementalShortestPath spf;
+  // the writer's copy of the LSAs; each Snapshot's store is a view published from it
+  private final LsaStore lsas;
+  private long version = 0;
+  // installed LSAs of other routers by expiry time; entries for replaced instances are skipped when polled
+  private final PriorityQueue<Expiry> expiries = new PriorityQueue<>(Comparator.comparingLong((Expiry e) -> e.atMs));
+  // null when the database only lives in memory, or after a disk error
+  private DurableLsdb durable;
 
   public LinkStateDatabase(RouterDescription routerDescription) {
+    this(routerDescription, DEFAULT_MAX_AGE, null);
+  }
+
+  LinkStateDatabase(RouterDescription routerDescription, int maxAgeSeconds, DurableLsdb durableLsdb) {
     rd = routerDescription;
+    maxAge = maxAgeSeconds;
+    spf = new IncrementalShortestPath(rd.simulatedIPAddress);
+    lsas = new LsaStore(spf.graph());
+    long now = System.currentTimeMillis();
     LSA l = initLinkStateDatabase();
-    _store.put(l.linkStateID, l);
+    l.ageBaseMs = now;
+    int restored = 0;
+
+    durable = durableLsdb;
+    if (durable != null) {
+      Map<String, DurableLsdb.Entry> loaded;
+      try {
+        loaded = durable.load();
+      } catch (IOException e) {
+        diskFailed(e);
+        loaded = Collections.emptyMap();
+      }
+      for (DurableLsdb.Entry entry : loaded.values()) {
+        LSA lsa = entry.lsa;
+        if (lsa.linkStateID.equals(rd.simulatedIPAddress)) {
+          // the links come back as neighbors attach again; only the sequence number carries over
+          l.lsaSeqNumber = Math.max(l.lsaSeqNumber, lsa.lsaSeqNumber);
+        } else if (entry.ageBaseMs + maxAge * 1000L > now) {
+          lsa.ageBaseMs = entry.ageBaseMs;
+          lsas.put(lsa);
+          restored++;
+          spf.update(lsa);
+          expiries.add(new Expiry(lsa.ageBaseMs + maxAge * 1000L, lsa));
+        }
+      }
+      if (!loaded.isEmpty()) {
+        System.out.println("Loaded " + restored + " LSAs from disk; own sequence number resumes at " + l.lsaSeqNumber);
+      }
+    }
+
+    spf.update(l);
+    lsas.put(l);
+    snapshot = new Snapshot(version, lsas.publish(), spf.snapshot(version));
   }
 
   /**
@@ -36,7 +150,7 @@ public class LinkStateDatabase {
    * @return the shortest path as a string, or null if no path exists
    */
   String getShortestPath(String destinationIP) {
-    List<String> path = computeShortestPathNodes(destinationIP);
+    List<String> path = computeShortestPathNodes(snapshot, destinationIP);
     if (path == null) {
       return null;
     }
@@ -52,7 +166,8 @@ public class LinkStateDatabase {
   }
 
   String getShortestPathForDisplay(String destinationIP) {
-    List<String> path = computeShortestPathNodes(destinationIP);
+    Snapshot snap = snapshot;
+    List<String> path = computeShortestPathNodes(snap, destinationIP);
     if (path == null) {
       return null;
     }
@@ -64,7 +179,7 @@ public class LinkStateDatabase {
     StringBuilder result = new StringBuilder("Path found: ");
     result.append(path.get(0));
     for (int i = 1; i < path.size(); i++) {
-      Integer weight = getEdgeWeight(path.get(i - 1), path.get(i));
+      Integer weight = getEdgeWeight(snap, path.get(i - 1), path.get(i));
       if (weight == null) {
         return null;
       }
@@ -73,112 +188,287 @@ public class LinkStateDatabase {
     return result.toString();
   }
 
-  private List<String> computeShortestPathNodes(String destinationIP) {
-    String sourceIP = rd.simulatedIPAddress;
-
+  private List<String> computeShortestPathNodes(Snapshot snap, String destinationIP) {
     if (destinationIP == null || destinationIP.isEmpty()) {
       return null;
     }
+    return snap.tree.pathTo(destinationIP);
+  }
 
-    if (sourceIP.equals(destinationIP)) {
-      return Collections.singletonList(sourceIP);
-    }
+  Snapshot snapshot() {
+    return snapshot;
+  }
 
-    PriorityQueue<State> pq = new PriorityQueue<>((a, b) -> Integer.compare(a.distance, b.distance));
-    HashMap<String, Integer> distance = new HashMap<>();
-    HashMap<String, String> parent = new HashMap<>();
+  /**
+   * @return the shortest path tree rooted at this router for the current database contents. The tree is
+   * repaired incrementally as LSAs are installed and published with each snapshot.
+   */
+  ShortestPathTree shortestPathTree() {
+    return snapshot.tree;
+  }
+
+  LSA get(String linkStateID) {
+    return snapshot.store.get(linkStateID);
+  }
+
+  LSA self() {
+    return snapshot.store.get(rd.simulatedIPAddress);
+  }
+
+  int maxAge() {
+    return maxAge;
+  }
 
-    Set<String> knownNodes = new HashSet<>();
-    knownNodes.add(sourceIP);
-    for (LSA lsa : _store.values()) {
+  /**
+   * store every LSA that is newer than our copy of it, publishing one new snapshot for the batch.
+   * An LSA at MaxAge is a flush: it removes our copy if it is at least as new, and is otherwise ignored
+   *
+   * @param replaced filled with linkStateID => the copy each installed LSA replaced (null if it was new)
+   * @return the LSAs that were installed or flushed
+   */
+  synchronized List<LSA> installNewer(Collection<LSA> incoming, Map<String, LSA> replaced) {
+    List<LSA> installed = new ArrayList<>();
+    boolean treeChanged = false;
+    long now = System.currentTimeMillis();
+    for (LSA lsa : incoming) {
       if (lsa == null || lsa.linkStateID == null) {
         continue;
       }
-      knownNodes.add(lsa.linkStateID);
-      if (lsa.links == null) {
+      LSA existing = lsas.get(lsa.linkStateID);
+      boolean flush = lsa.lsaAge >= maxAge;
+      if (flush && (existing == null || lsa.linkStateID.equals(rd.simulatedIPAddress))) {
+        // nothing to flush, and our own LSA only ever leaves by being refreshed
         continue;
       }
-      for (LinkDescription link : lsa.links) {
-        if (link != null && link.linkID != null) {
-          knownNodes.add(link.linkID);
+      if (existing != null && (lsa.lsaSeqNumber < existing.lsaSeqNumber
+          || (lsa.lsaSeqNumber == existing.lsaSeqNumber && !flush))) {
+        continue;
+      }
+      if (flush) {
+        lsas.remove(lsa.linkStateID);
+        treeChanged |= spf.update(withoutLinks(lsa));
+        logRemove(lsa);
+      } else {
+        lsa.ageBaseMs = now - lsa.lsaAge * 1000L;
+        lsas.put(lsa);
+        treeChanged |= spf.update(lsa);
+        if (!lsa.linkStateID.equals(rd.simulatedIPAddress)) {
+          expiries.add(new Expiry(lsa.ageBaseMs + maxAge * 1000L, lsa));
         }
+        logInstall(lsa);
+      }
+      if (!replaced.containsKey(lsa.linkStateID)) {
+        replaced.put(lsa.linkStateID, existing);
       }
+      installed.add(lsa);
     }
-
-    if (!knownNodes.contains(destinationIP)) {
-      return null;
+    if (!installed.isEmpty()) {
+      publish(treeChanged);
     }
+    return installed;
+  }
 
-    for (String id : knownNodes) {
-      distance.put(id, Integer.MAX_VALUE);
-      parent.put(id, null);
+  /**
+   * edit the links of a copy of this router's own LSA; if the edit reports a change the copy replaces
+   * it. Routes follow right away, the new sequence number comes later from originateSelfLsa()
+   *
+   * @return whether the edit changed anything
+   */
+  synchronized boolean editSelfLsa(Predicate<LinkedList<LinkDescription>> edit) {
+    LSA self = self();
+    LSA copy = copyOf(self, self.lsaSeqNumber);
+    copy.ageBaseMs = self.ageBaseMs;
+    if (!edit.test(copy.links)) {
+      return false;
     }
+    lsas.put(copy);
+    publish(spf.update(copy));
+    return true;
+  }
 
-    distance.put(sourceIP, 0);
-    pq.offer(new State(sourceIP, 0));
-
-    while (!pq.isEmpty()) {
-      State top = pq.poll();
-      String id = top.nodeIP;
-      int dist = top.distance;
+  /**
+   * replace this router's own LSA with a copy carrying the next sequence number, so its current links
+   * can be flooded
+   */
+  synchronized LSA originateSelfLsa() {
+    LSA self = self();
+    LSA next = copyOf(self, self.lsaSeqNumber + 1);
+    next.ageBaseMs = System.currentTimeMillis();
+    lsas.put(next);
+    logInstall(next);
+    publish(false);
+    return next;
+  }
 
-      Integer known = distance.get(id);
-      if (known == null || dist > known) {
+  /**
+   * remove every LSA of another router that reached MaxAge, publishing one snapshot for all of them
+   *
+   * @return a MaxAge copy of each removed LSA, to be flooded so the other routers drop it as well
+   */
+  synchronized List<LSA> purgeMaxAge(long nowMs) {
+    List<LSA> purged = new ArrayList<>();
+    boolean treeChanged = false;
+    while (!expiries.isEmpty() && expiries.peek().atMs <= nowMs) {
+      LSA lsa = expiries.poll().lsa;
+      if (lsas.get(lsa.linkStateID) != lsa) {
+        // replaced or flushed since
         continue;
       }
+      lsas.remove(lsa.linkStateID);
+      treeChanged |= spf.update(withoutLinks(lsa));
+      purged.add(withAge(lsa, maxAge));
+      logRemove(lsa);
+    }
+    if (!purged.isEmpty()) {
+      publish(treeChanged);
+    }
+    return purged;
+  }
 
-      LSA currentNode = _store.get(id);
-      if (currentNode == null || currentNode.links == null) {
-        continue;
-      }
+  // age of our own LSA since it was last originated
+  long selfAgeMs(long nowMs) {
+    return nowMs - self().ageBaseMs;
+  }
 
-      for (LinkDescription link : currentNode.links) {
-        if (link == null || link.linkID == null) {
-          continue;
-        }
+  /**
+   * copies of the LSAs carrying their current age plus one second of transmission delay, capped at
+   * MaxAge. The links are shared with the stored instance, which is never modified
+   */
+  List<LSA> withCurrentAge(List<LSA> lsas) {
+    long now = System.currentTimeMillis();
+    List<LSA> aged = new ArrayList<>(lsas.size());
+    for (LSA lsa : lsas) {
+      int age = lsa.lsaAge >= maxAge ? maxAge : (int) Math.min(maxAge, (now - lsa.ageBaseMs) / 1000 + 1);
+      aged.add(withAge(lsa, age));
+    }
+    return aged;
+  }
 
-        String nextNode = link.linkID;
-        if (id.equals(nextNode)) {
-          continue;
-        }
-        if (!hasReciprocalLink(id, nextNode)) {
-          continue;
-        }
-        if (!distance.containsKey(nextNode)) {
-          distance.put(nextNode, Integer.MAX_VALUE);
-          parent.put(nextNode, null);
-        }
+  /**
+   * @return every LSA in the current snapshot, for a full database exchange with a new neighbor
+   */
+  List<LSA> allLsas() {
+    return new ArrayList<>(snapshot.store.values());
+  }
 
-        if (distance.get(id) == Integer.MAX_VALUE) {
-          continue;
-        }
+  /**
+   * @return every LSA without its links, aged as for sending: the summary for a database exchange
+   */
+  List<LSA> headers() {
+    List<LSA> headers = new ArrayList<>();
+    for (LSA lsa : withCurrentAge(allLsas())) {
+      LSA header = withoutLinks(lsa);
+      header.lsaAge = lsa.lsaAge;
+      headers.add(header);
+    }
+    return headers;
+  }
 
-        int nextDist = distance.get(id) + link.weight;
-        if (nextDist < distance.get(nextNode)) {
-          distance.put(nextNode, nextDist);
-          parent.put(nextNode, id);
-          pq.offer(new State(nextNode, nextDist));
-        }
+  /**
+   * @return the headers from a neighbor's summary for which we have no copy or an older one; LSAs that
+   * are being flushed (MaxAge) are not worth asking for
+   */
+  List<LSA> newerThanOurs(Collection<LSA> headers) {
+    Map<String, LSA> store = snapshot.store;
+    List<LSA> newer = new ArrayList<>();
+    for (LSA header : headers) {
+      LSA ours = store.get(header.linkStateID);
+      if (ours == null ? header.lsaAge < maxAge : header.lsaSeqNumber > ours.lsaSeqNumber) {
+        newer.add(header);
       }
     }
+    return newer;
+  }
 
-    Integer destinationDistance = distance.get(destinationIP);
-    if (destinationDistance == null || destinationDistance == Integer.MAX_VALUE) {
-      return null;
+  // changes every time the contents of the database change
+  long version() {
+    return snapshot.version;
+  }
+
+  // stop writing to disk; the database carries on in memory
+  synchronized void close() {
+    if (durable != null) {
+      durable.close();
+      durable = null;
+    }
+  }
+
+  // The tree keeps the version it last changed at, so an unchanged tree is reused by the next snapshot
+  private void publish(boolean treeChanged) {
+    version++;
+    ShortestPathTree tree = treeChanged ? spf.snapshot(version) : snapshot.tree;
+    Map<String, LSA> store = lsas.publish();
+    snapshot = new Snapshot(version, store, tree);
+    if (durable != null) {
+      try {
+        durable.compactIfNeeded(store.values());
+      } catch (IOException e) {
+        diskFailed(e);
+      }
+    }
+  }
+
+  private void logInstall(LSA lsa) {
+    if (durable != null) {
+      try {
+        durable.logInstall(lsa, lsa.ageBaseMs);
+      } catch (IOException e) {
+        diskFailed(e);
+      }
     }
+  }
 
-    LinkedList<String> path = new LinkedList<>();
-    String current = destinationIP;
-    while (current != null) {
-      path.addFirst(current);
-      current = parent.get(current);
+  private void logRemove(LSA lsa) {
+    if (durable != null) {
+      try {
+        durable.logRemove(lsa.linkStateID, lsa.lsaSeqNumber);
+      } catch (IOException e) {
+        diskFailed(e);
+      }
     }
+  }
 
-    return new ArrayList<>(path);
+  private void diskFailed(IOException e) {
+    System.err.println("Link state database disk write failed, continuing in memory only: " + e.getMessage());
+    durable.close();
+    durable = null;
   }
 
-  private Integer getEdgeWeight(String from, String to) {
-    LSA lsa = _store.get(from);
+  private static LSA withAge(LSA lsa, int age) {
+    LSA copy = new LSA();
+    copy.linkStateID = lsa.linkStateID;
+    copy.lsaSeqNumber = lsa.lsaSeqNumber;
+    copy.links = lsa.links;
+    copy.lsaAge = age;
+    copy.ageBaseMs = lsa.ageBaseMs;
+    return copy;
+  }
+
+  // the same router with nothing advertised, to take its edges out of the shortest path tree
+  private static LSA withoutLinks(LSA lsa) {
+    LSA empty = new LSA();
+    empty.linkStateID = lsa.linkStateID;
+    empty.lsaSeqNumber = lsa.lsaSeqNumber;
+    return empty;
+  }
+
+  private static LSA copyOf(LSA lsa, int seqNumber) {
+    LSA copy = new LSA();
+    copy.linkStateID = lsa.linkStateID;
+    copy.lsaSeqNumber = seqNumber;
+    for (LinkDescription ld : lsa.links) {
+      LinkDescription c = new LinkDescription();
+      c.linkID = ld.linkID;
+      c.portNum = ld.portNum;
+      c.tosMetrics = ld.tosMetrics;
+      c.weight = ld.weight;
+      copy.links.add(c);
+    }
+    return copy;
+  }
+
+  private Integer getEdgeWeight(Snapshot snap, String from, String to) {
+    LSA lsa = snap.store.get(from);
     if (lsa == null || lsa.links == null) {
       return null;
     }
@@ -191,20 +481,6 @@ public class LinkStateDatabase {
     return null;
   }
 
-  private boolean hasReciprocalLink(String from, String to) {
-    LSA toLsa = _store.get(to);
-    if (toLsa == null || toLsa.links == null) {
-      return false;
-    }
-
-    for (LinkDescription backLink : toLsa.links) {
-      if (backLink != null && from.equals(backLink.linkID)) {
-        return true;
-      }
-    }
-    return false;
-  }
-
   //initialize the linkstate database by adding an entry about the router itself
   private LSA initLinkStateDatabase() {
     LSA lsa = new LSA();
@@ -222,7 +498,7 @@ public class LinkStateDatabase {
 
   public String toString() {
     StringBuilder sb = new StringBuilder();
-    for (LSA lsa: _store.values()) {
+    for (LSA lsa: snapshot.store.values()) {
       sb.append(lsa.linkStateID).append("(" + lsa.lsaSeqNumber + ")").append(":\t");
       for (LinkDescription ld : lsa.links) {
         sb.append(ld.linkID).append(",").append(ld.portNum).append(",").
@@ -0,0 +1,60 @@
+package socs.network.node;
+
+import socs.network.message.LSA;
+
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Ages the link state database of one router with a single sweep per second.
+ * <p/>
+ * Each sweep purges the LSAs of other routers that reached MaxAge and floods them out at MaxAge so every
+ * router drops them, and refreshes this router's own LSA (a new instance with a new sequence number)
+ * once it is older than the refresh time, so it never reaches MaxAge anywhere while the router is up.
+ * <p/>
+ * Config: socs.network.router.maxAge (seconds, default 3600) and socs.network.router.lsRefreshTime
+ * (seconds, default half of MaxAge).
+ */
+class LsaAging {
+
+  static final long SWEEP_INTERVAL_MS = 1000;
+
+  private final Router router;
+  private final LinkStateDatabase lsd;
+  private final long refreshMs;
+  private final ScheduledExecutorService timer;
+
+  LsaAging(Router router, LinkStateDatabase lsd, int refreshSeconds) {
+    this.router = router;
+    this.lsd = lsd;
+    this.refreshMs = refreshSeconds * 1000L;
+    this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread t = new Thread(r, "router-aging");
+      t.setDaemon(true);
+      return t;
+    });
+    timer.scheduleWithFixedDelay(this::sweep, SWEEP_INTERVAL_MS, SWEEP_INTERVAL_MS, TimeUnit.MILLISECONDS);
+  }
+
+  void shutdown() {
+    timer.shutdownNow();
+  }
+
+  private void sweep() {
+    try {
+      long now = System.currentTimeMillis();
+      List<LSA> purged = lsd.purgeMaxAge(now);
+      if (!purged.isEmpty()) {
+        router.floodPurged(purged);
+      }
+      if (lsd.selfAgeMs(now) >= refreshMs) {
+        router.refreshSelfLsa();
+      }
+    } catch (RuntimeException e) {
+      // an exception would cancel the periodic sweep
+      System.err.println("LSA aging sweep failed: " + e);
+    }
+  }
+}
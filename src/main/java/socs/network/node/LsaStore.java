@@ -0,0 +1,179 @@
+package socs.network.node;
+
+import socs.network.message.LSA;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * The LSAs of a LinkStateDatabase, stored by the WeighedGraph index of their router in pages of
+ * ShortestPathTree.PAGE routers.
+ * <p/>
+ * Like the shortest path tree, publish() hands out an immutable Map that shares every page with the
+ * writer; a page is only copied the first time the writer changes it after a publish. Installing a
+ * batch of LSAs therefore copies the pages of the routers it touched, not the whole database. Lookups
+ * go through the graph's id => index map, which is safe to read from any thread.
+ * <p/>
+ * The writing side is not thread safe; LinkStateDatabase calls it under its lock.
+ */
+final class LsaStore {
+
+  private final WeighedGraph graph;
+  private LSA[][] pages = new LSA[0][];
+  private boolean[] pageShared = new boolean[0];
+  private int size;
+
+  LsaStore(WeighedGraph graph) {
+    this.graph = graph;
+  }
+
+  // The writer's current copy, or null
+  LSA get(String linkStateID) {
+    int i = graph.indexOf(linkStateID);
+    return i < 0 || i >= pages.length << ShortestPathTree.PAGE_BITS ? null : slot(pages, i);
+  }
+
+  /**
+   * @return the LSA it replaced, or null
+   */
+  LSA put(LSA lsa) {
+    return set(graph.intern(lsa.linkStateID), lsa);
+  }
+
+  /**
+   * @return the LSA removed, or null if there was none
+   */
+  LSA remove(String linkStateID) {
+    int i = graph.indexOf(linkStateID);
+    return i < 0 || i >= pages.length << ShortestPathTree.PAGE_BITS ? null : set(i, null);
+  }
+
+  /**
+   * @return an immutable view of the current contents; later writes copy the pages they change first
+   */
+  Map<String, LSA> publish() {
+    Arrays.fill(pageShared, true);
+    return new View(Arrays.copyOf(pages, pages.length), size, graph.ids(), graph.index());
+  }
+
+  private LSA set(int i, LSA lsa) {
+    int page = i >>> ShortestPathTree.PAGE_BITS;
+    if (page >= pages.length) {
+      if (lsa == null) {
+        return null;
+      }
+      int grown = Math.max(page + 1, pages.length * 2);
+      pages = Arrays.copyOf(pages, grown);
+      pageShared = Arrays.copyOf(pageShared, grown);
+    }
+    if (pages[page] == null) {
+      if (lsa == null) {
+        return null;
+      }
+      pages[page] = new LSA[ShortestPathTree.PAGE];
+    } else if (pageShared[page]) {
+      pages[page] = pages[page].clone();
+    }
+    pageShared[page] = false;
+    int s = i & (ShortestPathTree.PAGE - 1);
+    LSA old = pages[page][s];
+    pages[page][s] = lsa;
+    if (old == null && lsa != null) {
+      size++;
+    } else if (old != null && lsa == null) {
+      size--;
+    }
+    return old;
+  }
+
+  private static LSA slot(LSA[][] pages, int i) {
+    LSA[] page = pages[i >>> ShortestPathTree.PAGE_BITS];
+    return page == null ? null : page[i & (ShortestPathTree.PAGE - 1)];
+  }
+
+  // One published version; none of its pages change after publish()
+  private static final class View extends AbstractMap<String, LSA> {
+    private final LSA[][] pages;
+    private final int size;
+    // the graph's names as of publish(); every index in the pages is below its length
+    private final String[] ids;
+    private final Map<String, Integer> index;
+
+    View(LSA[][] pages, int size, String[] ids, Map<String, Integer> index) {
+      this.pages = pages;
+      this.size = size;
+      this.ids = ids;
+      this.index = index;
+    }
+
+    @Override
+    public LSA get(Object key) {
+      Integer i = key == null ? null : index.get(key);
+      return i == null || i >= pages.length << ShortestPathTree.PAGE_BITS ? null : slot(pages, i);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+      return get(key) != null;
+    }
+
+    @Override
+    public int size() {
+      return size;
+    }
+
+    @Override
+    public Set<Entry<String, LSA>> entrySet() {
+      return new AbstractSet<Entry<String, LSA>>() {
+        @Override
+        public Iterator<Entry<String, LSA>> iterator() {
+          return new Iterator<Entry<String, LSA>>() {
+            // index of the next stored LSA, or the end of the pages
+            private int next = advance(0);
+
+            @Override
+            public boolean hasNext() {
+              return next < pages.length << ShortestPathTree.PAGE_BITS;
+            }
+
+            @Override
+            public Entry<String, LSA> next() {
+              if (!hasNext()) {
+                throw new NoSuchElementException();
+              }
+              int i = next;
+              next = advance(i + 1);
+              return new SimpleImmutableEntry<>(ids[i], slot(pages, i));
+            }
+          };
+        }
+
+        @Override
+        public int size() {
+          return size;
+        }
+      };
+    }
+
+    private int advance(int from) {
+      int end = pages.length << ShortestPathTree.PAGE_BITS;
+      int i = from;
+      while (i < end) {
+        LSA[] page = pages[i >>> ShortestPathTree.PAGE_BITS];
+        if (page == null) {
+          i = (i | (ShortestPathTree.PAGE - 1)) + 1;
+        } else if (page[i & (ShortestPathTree.PAGE - 1)] == null) {
+          i++;
+        } else {
+          break;
+        }
+      }
+      return Math.min(i, end);
+    }
+  }
+}
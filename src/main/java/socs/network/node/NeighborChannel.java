@@ -0,0 +1,207 @@
+package socs.network.node;
+
+import socs.network.message.SOSPFPacket;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * Long-lived outbound channel from this router to one neighbor.
+ * <p/>
+ * The socket is opened on first use (or handed over by attach/connect) and then reused for HELLO,
+ * LSAUPDATE, DISCONNECT and application messages. If a write fails on a connection that was
+ * already open (e.g. the neighbor restarted), the channel reconnects once and retries.
+ * <p/>
+ * Posted packets are pipelined: whatever has queued up while the previous batch was being written
+ * goes out as the next batch, up to MAX_BATCH packets per flush.
+ */
+class NeighborChannel {
+
+  static final int MAX_BATCH = 256;
+
+  private final RouterDescription remote;
+  private final WireFormat format;
+  // opens the connection; null dials TCP directly
+  private final NetworkLayer network;
+  // volatile so abortStalledWrite() can reach it without the lock a blocked writer holds
+  private volatile Connection connection;
+  // System.nanoTime() when the write in progress started, 0 while nothing is being written
+  private volatile long writingSince;
+
+  // packets handed to post(); drained by at most one task at a time so they go out in order
+  private final ConcurrentLinkedQueue<QueuedPacket> outbox = new ConcurrentLinkedQueue<>();
+  private final AtomicBoolean draining = new AtomicBoolean();
+
+  NeighborChannel(RouterDescription remote, WireFormat format) {
+    this(remote, format, null);
+  }
+
+  NeighborChannel(RouterDescription remote, WireFormat format, NetworkLayer network) {
+    this.remote = remote;
+    this.format = format;
+    this.network = network;
+  }
+
+  /**
+   * send a packet that does not expect a reply
+   */
+  synchronized void send(SOSPFPacket packet) throws IOException {
+    boolean reused = connection != null;
+    writingSince = System.nanoTime();
+    try {
+      connect().write(packet);
+    } catch (IOException e) {
+      closeConnection();
+      if (!reused) {
+        throw e;
+      }
+      connect().write(packet);
+    } finally {
+      writingSince = 0;
+    }
+  }
+
+  /**
+   * queue a packet to be sent from the given executor instead of the calling thread. Packets posted
+   * to the same channel are written in the order they were posted.
+   */
+  void post(SOSPFPacket packet, Executor executor, Consumer<IOException> onFailure) {
+    outbox.add(new QueuedPacket(packet, onFailure));
+    if (draining.compareAndSet(false, true)) {
+      executor.execute(() -> drain(executor));
+    }
+  }
+
+  private void drain(Executor executor) {
+    List<QueuedPacket> batch = new ArrayList<>();
+    QueuedPacket queued;
+    do {
+      batch.clear();
+      while (batch.size() < MAX_BATCH && (queued = outbox.poll()) != null) {
+        batch.add(queued);
+      }
+      if (!batch.isEmpty()) {
+        sendBatch(batch);
+      }
+    } while (batch.size() == MAX_BATCH);
+    draining.set(false);
+    if (!outbox.isEmpty() && draining.compareAndSet(false, true)) {
+      executor.execute(() -> drain(executor));
+    }
+  }
+
+  // Same reconnect-once rule as send(); a batch that fails twice is reported packet by packet
+  private synchronized void sendBatch(List<QueuedPacket> batch) {
+    boolean reused = connection != null;
+    try {
+      writeBatch(batch);
+      return;
+    } catch (IOException e) {
+      closeConnection();
+      if (!reused) {
+        fail(batch, e);
+        return;
+      }
+    }
+    try {
+      writeBatch(batch);
+    } catch (IOException e) {
+      closeConnection();
+      fail(batch, e);
+    }
+  }
+
+  private void writeBatch(List<QueuedPacket> batch) throws IOException {
+    writingSince = System.nanoTime();
+    try {
+      Connection out = connect();
+      for (QueuedPacket queued : batch) {
+        out.writeBuffered(queued.packet);
+      }
+      out.flush();
+    } finally {
+      writingSince = 0;
+    }
+  }
+
+  private static void fail(List<QueuedPacket> batch, IOException e) {
+    for (QueuedPacket queued : batch) {
+      queued.onFailure.accept(e);
+    }
+  }
+
+  /**
+   * send a packet and block until the neighbor answers on the same connection (HELLO, CONNECT)
+   */
+  synchronized SOSPFPacket exchange(SOSPFPacket packet) throws IOException, ClassNotFoundException {
+    boolean reused = connection != null;
+    try {
+      connect().write(packet);
+    } catch (IOException e) {
+      closeConnection();
+      if (!reused) {
+        throw e;
+      }
+      connect().write(packet);
+    }
+    try {
+      return connection.read();
+    } catch (IOException | ClassNotFoundException e) {
+      // the stream is out of step with the peer now, start over on the next packet
+      closeConnection();
+      throw e;
+    }
+  }
+
+  synchronized void close() {
+    closeConnection();
+  }
+
+  /**
+   * close the connection if a write on it has been blocked for longer than the timeout, e.g. because the
+   * neighbor stopped reading. Does not take the channel's lock, which the blocked writer holds; the
+   * writer gets an IOException and the next packet reconnects.
+   *
+   * @return true if the connection was closed
+   */
+  boolean abortStalledWrite(long timeoutMs) {
+    long since = writingSince;
+    Connection stalled = connection;
+    if (since == 0 || stalled == null || System.nanoTime() - since < TimeUnit.MILLISECONDS.toNanos(timeoutMs)) {
+      return false;
+    }
+    stalled.close();
+    return true;
+  }
+
+  private Connection connect() throws IOException {
+    if (connection == null || connection.isClosed()) {
+      connection = network != null ? network.dial(remote, format)
+          : PacketConnection.open(remote.processIPAddress, remote.processPortNumber, format);
+    }
+    return connection;
+  }
+
+  private void closeConnection() {
+    if (connection != null) {
+      connection.close();
+      connection = null;
+    }
+  }
+
+  private static class QueuedPacket {
+    final SOSPFPacket packet;
+    final Consumer<IOException> onFailure;
+
+    QueuedPacket(SOSPFPacket packet, Consumer<IOException> onFailure) {
+      this.packet = packet;
+      this.onFailure = onFailure;
+    }
+  }
+}
@@ -0,0 +1,97 @@
+package socs.network.node;
+
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The links of one router, indexed by port number and by the neighbor's simulated IP.
+ * <p/>
+ * Lookups in either direction are a single array read or hash lookup, and links() can be iterated
+ * without a lock while links come and go (flooding just sees a weakly consistent view). Adding and
+ * removing links is synchronized so both indexes and the free port set always agree.
+ * <p/>
+ * Config: socs.network.router.maxNeighbors (number of ports, default 4).
+ */
+class NeighborTable {
+
+  static final int DEFAULT_MAX_NEIGHBORS = 4;
+
+  private final AtomicReferenceArray<Link> byPort;
+  private final ConcurrentHashMap<String, Link> byIP = new ConcurrentHashMap<>();
+  // ports in use; guarded by this
+  private final BitSet used = new BitSet();
+
+  NeighborTable(int maxNeighbors) {
+    byPort = new AtomicReferenceArray<>(Math.max(1, maxNeighbors));
+  }
+
+  // number of ports; valid port numbers are 0 .. capacity() - 1
+  int capacity() {
+    return byPort.length();
+  }
+
+  int size() {
+    return byIP.size();
+  }
+
+  // Returns null for an empty or out of range port
+  Link get(int port) {
+    if (port < 0 || port >= byPort.length()) {
+      return null;
+    }
+    return byPort.get(port);
+  }
+
+  Link get(String simulatedIP) {
+    return simulatedIP == null ? null : byIP.get(simulatedIP);
+  }
+
+  /**
+   * @return the lowest free port, or -1 if every port is in use. Only a hint: a concurrent add may take
+   * it first, which add() reports
+   */
+  synchronized int freePort() {
+    int port = used.nextClearBit(0);
+    return port < byPort.length() ? port : -1;
+  }
+
+  /**
+   * attach a link at its port
+   *
+   * @return false (and nothing changes) if the port is taken or the neighbor already has a link
+   */
+  synchronized boolean add(Link link) {
+    int port = link.portNum;
+    String ip = link.router2.simulatedIPAddress;
+    if (port < 0 || port >= byPort.length() || used.get(port) || byIP.containsKey(ip)) {
+      return false;
+    }
+    used.set(port);
+    byPort.set(port, link);
+    byIP.put(ip, link);
+    return true;
+  }
+
+  /**
+   * @return the link that was attached at the port, or null
+   */
+  synchronized Link remove(int port) {
+    Link link = get(port);
+    if (link != null) {
+      used.clear(port);
+      byPort.set(port, null);
+      byIP.remove(link.router2.simulatedIPAddress, link);
+    }
+    return link;
+  }
+
+  /**
+   * all attached links, in no particular order; safe to iterate while links are added or removed
+   */
+  Collection<Link> links() {
+    return Collections.unmodifiableCollection(byIP.values());
+  }
+}
@@ -3,15 +3,22 @@ package socs.network.node;
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 
 class NetworkLayer {
   private final Router router;
+  private final ExecutionMode executionMode;
   private ServerSocket serverSocket;
   private Thread acceptThread;
+  // listener on socs.network.router.unixSocket for neighbors on this host; null without one
+  private ServerSocketChannel unixServerChannel;
+  private String unixPath;
   private volatile boolean running;
 
-  NetworkLayer(Router router) {
+  NetworkLayer(Router router, ExecutionMode executionMode) {
     this.router = router;
+    this.executionMode = executionMode;
   }
 
   // Start the network layer by opening a server socket and starting the accept loop
@@ -36,6 +43,12 @@ class NetworkLayer {
 
     // Print the listening port for debugging
     System.out.println("Listening on port " + boundPort);
+
+    if (listenUnix() != null) {
+      Thread unixAcceptThread = new Thread(this::acceptUnixLoop, "router-accept-unix-" + boundPort);
+      unixAcceptThread.setDaemon(true);
+      unixAcceptThread.start();
+    }
   }
 
   // Stop the network layer by closing the server socket and stopping the accept loop
@@ -47,6 +60,51 @@ class NetworkLayer {
       } catch (IOException ignored) {
       }
     }
+    closeUnix();
+  }
+
+  // Opens a connection to a neighbor's listener; used by NeighborChannel on first use and after a failure
+  Connection dial(RouterDescription remote, WireFormat format) throws IOException {
+    String path = remote.socketPath;
+    if (path != null) {
+      try {
+        return PacketConnection.openUnix(path, format);
+      } catch (IOException e) {
+        // the neighbor stopped listening there (or moved hosts); its next HELLO advertises it again
+        System.err.println("Failed to connect to " + path + ": " + e.getMessage() + "; using TCP to "
+            + remote.simulatedIPAddress);
+        remote.socketPath = null;
+      }
+    }
+    return PacketConnection.open(remote.processIPAddress, remote.processPortNumber, format);
+  }
+
+  /**
+   * bind the router's Unix domain socket, if it has one. Without a listener the router stops
+   * advertising it, so neighbors keep using TCP.
+   */
+  ServerSocketChannel listenUnix() {
+    String path = router.rd.socketPath;
+    if (path == null) {
+      return null;
+    }
+    try {
+      unixServerChannel = UnixSockets.listen(path);
+      unixPath = path;
+      System.out.println("Listening on " + path);
+      return unixServerChannel;
+    } catch (IOException e) {
+      System.err.println("Failed to listen on " + path + ": " + e + "; neighbors will use TCP");
+      router.rd.socketPath = null;
+      return null;
+    }
+  }
+
+  void closeUnix() {
+    if (unixPath != null) {
+      UnixSockets.close(unixServerChannel, unixPath);
+      unixPath = null;
+    }
   }
 
   // The accept loop that continuously accepts incoming connections and spawns handler threads
@@ -55,12 +113,26 @@ class NetworkLayer {
       try {
         // Accept an incoming connection (blocking call)
         Socket socket = serverSocket.accept();
-        // Spawn a new thread to handle the connection using the router's request handler
-        Thread handler = new Thread(() -> router.requestHandler(socket),
-          "router-conn-" + socket.getPort());
-        // Set the handler thread as a daemon so it doesn't prevent JVM shutdown
+        // Spawn a new thread (platform or virtual, see ExecutionMode) to handle the connection using the router's request handler
+        // Handler threads are daemons so they don't prevent JVM shutdown
         // Basically, the handler thread will run in the background and will not block the application from exiting if the main thread finishes execution
-        handler.setDaemon(true);
+        Thread handler = executionMode.newThread(() -> router.requestHandler(socket),
+          "router-conn-" + socket.getPort());
+        handler.start();
+      } catch (IOException e) {
+        if (running) {
+          System.err.println("Accept loop error: " + e.getMessage());
+        }
+      }
+    }
+  }
+
+  // Same as acceptLoop, for neighbors connecting over the Unix domain socket
+  private void acceptUnixLoop() {
+    while (running) {
+      try {
+        SocketChannel channel = unixServerChannel.accept();
+        Thread handler = executionMode.newThread(() -> router.requestHandler(channel), "router-conn-unix");
         handler.start();
       } catch (IOException e) {
         if (running) {
@@ -0,0 +1,370 @@
+package socs.network.node;
+
+import socs.network.message.SOSPFCodec;
+import socs.network.message.SOSPFPacket;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * NetworkLayer built on a ServerSocketChannel and a small, fixed set of selector threads.
+ * <p/>
+ * Each event loop owns a Selector and does non-blocking accept (loop 0 only), framed reads and queued
+ * writes for its connections. Complete frames are decoded and handed to the router on a worker pool
+ * (a virtual thread per task in the virtual ExecutionMode). Packets from one connection are always
+ * handled in order, one at a time. Handlers never block a worker: an attach request is queued for the
+ * terminal and answered from there, and the router posts the packets a handler sends to its send
+ * executor. Only the binary wire format is framed, so Java-serialized connections are refused.
+ * <p/>
+ * Loop 0 also accepts on the router's Unix domain socket, if it has one; those connections are served
+ * the same way.
+ * <p/>
+ * Selected with socs.network.router.networkLayer = "nio" (threads: socs.network.router.nioThreads).
+ */
+class NioNetworkLayer extends NetworkLayer {
+
+  private static final int INITIAL_READ_BUFFER = 16 * 1024;
+
+  private final Router router;
+  private final ExecutionMode executionMode;
+  private final int threads;
+  private ServerSocketChannel serverChannel;
+  private EventLoop[] loops;
+  private ExecutorService workers;
+  private final AtomicInteger nextLoop = new AtomicInteger();
+  private volatile boolean running;
+
+  NioNetworkLayer(Router router, ExecutionMode executionMode, int threads) {
+    super(router, executionMode);
+    this.router = router;
+    this.executionMode = executionMode;
+    this.threads = Math.max(1, threads);
+  }
+
+  @Override
+  void start() throws IOException {
+    if (running) {
+      return;
+    }
+    int port = router.getProcessPort();
+    serverChannel = ServerSocketChannel.open();
+    serverChannel.socket().setReuseAddress(true);
+    serverChannel.bind(new InetSocketAddress(port));
+    serverChannel.configureBlocking(false);
+    int boundPort = serverChannel.socket().getLocalPort();
+    if (boundPort != port) {
+      router.setProcessPort((short) boundPort);
+    }
+
+    running = true;
+    workers = executionMode.newWorkerExecutor(threads, "router-nio-worker-" + boundPort);
+    loops = new EventLoop[threads];
+    for (int i = 0; i < threads; i++) {
+      loops[i] = new EventLoop(Selector.open());
+    }
+    serverChannel.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+    ServerSocketChannel unixChannel = listenUnix();
+    if (unixChannel != null) {
+      unixChannel.configureBlocking(false);
+      unixChannel.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+    }
+    for (int i = 0; i < threads; i++) {
+      Thread t = new Thread(loops[i], "router-nio-loop-" + boundPort + "-" + i);
+      t.setDaemon(true);
+      t.start();
+    }
+
+    System.out.println("Listening on port " + boundPort + " (nio, " + threads + " event loops)");
+  }
+
+  @Override
+  void stop() {
+    running = false;
+    try {
+      if (serverChannel != null) {
+        serverChannel.close();
+      }
+    } catch (IOException ignored) {
+    }
+    closeUnix();
+    if (loops != null) {
+      for (EventLoop loop : loops) {
+        loop.close();
+      }
+    }
+    if (workers != null) {
+      workers.shutdownNow();
+    }
+  }
+
+  private class EventLoop implements Runnable {
+    private final Selector selector;
+    // work posted by other threads; only the loop thread touches selection keys
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    EventLoop(Selector selector) {
+      this.selector = selector;
+    }
+
+    void execute(Runnable task) {
+      tasks.add(task);
+      selector.wakeup();
+    }
+
+    // The loop thread closes its connections and the selector on its way out
+    void close() {
+      selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+      try {
+        while (running) {
+          selector.select();
+          Runnable task;
+          while ((task = tasks.poll()) != null) {
+            task.run();
+          }
+          Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+          while (it.hasNext()) {
+            SelectionKey key = it.next();
+            it.remove();
+            if (!key.isValid()) {
+              continue;
+            }
+            if (key.isAcceptable()) {
+              accept((ServerSocketChannel) key.channel());
+              continue;
+            }
+            Connection conn = (Connection) key.attachment();
+            if (key.isReadable()) {
+              conn.onReadable();
+            }
+            if (key.isValid() && key.isWritable()) {
+              conn.onWritable();
+            }
+          }
+        }
+      } catch (ClosedSelectorException ignored) {
+      } catch (IOException e) {
+        if (running) {
+          System.err.println("Event loop error: " + e.getMessage());
+        }
+      } finally {
+        closeAll();
+      }
+    }
+
+    // Closing the channels, not just the selector, is what lets the peers see EOF
+    private void closeAll() {
+      try {
+        for (SelectionKey key : selector.keys()) {
+          try {
+            key.channel().close();
+          } catch (IOException ignored) {
+          }
+        }
+        selector.close();
+      } catch (ClosedSelectorException | IOException ignored) {
+      }
+    }
+
+    private void accept(ServerSocketChannel server) {
+      SocketChannel channel;
+      try {
+        while ((channel = server.accept()) != null) {
+          channel.configureBlocking(false);
+          if (server == serverChannel) {
+            channel.socket().setTcpNoDelay(true);
+          }
+          // spread connections over the loops; registration has to happen on the owning loop
+          final EventLoop owner = loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+          final SocketChannel accepted = channel;
+          owner.execute(() -> owner.register(accepted));
+        }
+      } catch (IOException e) {
+        if (running) {
+          System.err.println("Accept loop error: " + e.getMessage());
+        }
+      }
+    }
+
+    private void register(SocketChannel channel) {
+      try {
+        Connection conn = new Connection(this, channel);
+        conn.key = channel.register(selector, SelectionKey.OP_READ, conn);
+        conn.writePreamble();
+      } catch (IOException e) {
+        try {
+          channel.close();
+        } catch (IOException ignored) {
+        }
+      }
+    }
+  }
+
+  private class Connection implements PacketSink {
+    private final EventLoop loop;
+    private final SocketChannel channel;
+    private SelectionKey key;
+    private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_READ_BUFFER);
+    private boolean preambleRead;
+
+    private final ConcurrentLinkedQueue<ByteBuffer> pendingWrites = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<SOSPFPacket> inbox = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean draining = new AtomicBoolean();
+
+    Connection(EventLoop loop, SocketChannel channel) {
+      this.loop = loop;
+      this.channel = channel;
+    }
+
+    void writePreamble() {
+      ByteBuffer preamble = ByteBuffer.allocate(3);
+      preamble.put(SOSPFCodec.MAGIC_0).put(SOSPFCodec.MAGIC_1).put(SOSPFCodec.VERSION);
+      preamble.flip();
+      pendingWrites.add(preamble);
+      key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+    }
+
+    void onReadable() {
+      int n;
+      try {
+        n = channel.read(readBuffer);
+      } catch (IOException e) {
+        close();
+        return;
+      }
+      if (n < 0) {
+        close();
+        return;
+      }
+      readBuffer.flip();
+      try {
+        if (!decodeFrames()) {
+          close();
+          return;
+        }
+      } catch (IOException e) {
+        System.err.println("Error handling request: " + e);
+        close();
+        return;
+      }
+      readBuffer.compact();
+    }
+
+    // Returns false if the stream is not something this layer can serve
+    private boolean decodeFrames() throws IOException {
+      if (!preambleRead) {
+        if (readBuffer.remaining() < 3) {
+          return true;
+        }
+        byte m0 = readBuffer.get();
+        byte m1 = readBuffer.get();
+        int version = readBuffer.get() & 0xff;
+        if (m0 != SOSPFCodec.MAGIC_0 || m1 != SOSPFCodec.MAGIC_1) {
+          System.err.println("Rejected connection: the nio network layer only accepts wireFormat = binary");
+          return false;
+        }
+        SOSPFCodec.checkVersion(version);
+        preambleRead = true;
+      }
+      while (readBuffer.remaining() >= 4) {
+        int length = readBuffer.getInt(readBuffer.position());
+        if (length < 0 || length > SOSPFCodec.MAX_FRAME_LENGTH) {
+          throw new IOException("invalid frame length " + length);
+        }
+        if (readBuffer.remaining() < 4 + length) {
+          if (4 + length > readBuffer.capacity()) {
+            // frame does not fit, grow the buffer and keep what has arrived so far
+            ByteBuffer bigger = ByteBuffer.allocate(4 + length);
+            bigger.put(readBuffer);
+            bigger.flip();
+            readBuffer = bigger;
+          }
+          break;
+        }
+        int start = readBuffer.position() + 4;
+        SOSPFPacket packet = SOSPFCodec.decode(readBuffer.array(), readBuffer.arrayOffset() + start, length);
+        readBuffer.position(start + length);
+        deliver(packet);
+      }
+      return true;
+    }
+
+    private void deliver(SOSPFPacket packet) {
+      inbox.add(packet);
+      if (draining.compareAndSet(false, true)) {
+        workers.execute(this::drain);
+      }
+    }
+
+    // runs on a worker; at most one drain per connection is active, which keeps packets in order
+    private void drain() {
+      SOSPFPacket packet;
+      while ((packet = inbox.poll()) != null) {
+        try {
+          router.handlePacket(packet, this);
+        } catch (Exception e) {
+          System.err.println("Error handling request: " + e);
+        }
+      }
+      draining.set(false);
+      if (!inbox.isEmpty() && draining.compareAndSet(false, true)) {
+        workers.execute(this::drain);
+      }
+    }
+
+    @Override
+    public void write(SOSPFPacket packet) throws IOException {
+      if (!channel.isOpen()) {
+        throw new IOException("connection closed");
+      }
+      byte[] body = SOSPFCodec.encode(packet);
+      ByteBuffer frame = ByteBuffer.allocate(4 + body.length);
+      frame.putInt(body.length).put(body);
+      frame.flip();
+      pendingWrites.add(frame);
+      loop.execute(() -> {
+        if (key.isValid()) {
+          key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        }
+      });
+    }
+
+    void onWritable() {
+      try {
+        ByteBuffer head;
+        while ((head = pendingWrites.peek()) != null) {
+          channel.write(head);
+          if (head.hasRemaining()) {
+            return;
+          }
+          pendingWrites.poll();
+        }
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+      } catch (IOException e) {
+        close();
+      }
+    }
+
+    private void close() {
+      key.cancel();
+      try {
+        channel.close();
+      } catch (IOException ignored) {
+      }
+    }
+  }
+}
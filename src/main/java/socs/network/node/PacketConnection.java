@@ -0,0 +1,191 @@
+package socs.network.node;
+
+import socs.network.message.SOSPFCodec;
+import socs.network.message.SOSPFPacket;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+
+/**
+ * A single socket carrying a stream of SOSPF packets in both directions.
+ * <p/>
+ * Unlike the original one-packet-per-socket exchange, a PacketConnection stays open and is reused
+ * for every packet sent to the same neighbor, so the stream header and TCP handshake are only paid
+ * once. The side that opens the connection picks the {@link WireFormat}; the accepting side detects
+ * it from the first bytes and answers in the same format. The socket is TCP, or a Unix domain socket
+ * when both routers listen on one and share a host (see UnixSockets).
+ */
+class PacketConnection implements Connection {
+
+  // first two bytes of every ObjectOutputStream
+  private static final int JAVA_STREAM_MAGIC = 0xACED;
+  private static final int WRITE_BUFFER_SIZE = 32 * 1024;
+  static final int CONNECT_TIMEOUT_MS = 5000;
+  // a reply to an attach HELLO waits for someone to answer the prompt on the other router
+  static final int READ_TIMEOUT_MS = 60_000;
+
+  // a TCP Socket, or a SocketChannel of a Unix domain socket
+  private final Closeable transport;
+  private final WireFormat format;
+
+  private ObjectOutputStream objectOut;
+  private ObjectInputStream objectIn;
+  private DataOutputStream dataOut;
+  private DataInputStream dataIn;
+  private boolean preambleRead;
+
+  private PacketConnection(Closeable transport, WireFormat format, InputStream in, OutputStream rawOut)
+      throws IOException {
+    this.transport = transport;
+    this.format = format;
+    // large enough that a batch of application messages goes out in a few writes
+    OutputStream out = new BufferedOutputStream(rawOut, WRITE_BUFFER_SIZE);
+    if (format == WireFormat.JAVA) {
+      // Both ends write their stream header before reading the peer's, so this never deadlocks
+      objectOut = new ObjectOutputStream(out);
+      objectOut.flush();
+      objectIn = new ObjectInputStream(in);
+    } else {
+      dataOut = new DataOutputStream(out);
+      SOSPFCodec.writePreamble(dataOut);
+      dataOut.flush();
+      dataIn = new DataInputStream(in);
+    }
+  }
+
+  /**
+   * connect to a neighbor's TCP listener. Connecting gives up after CONNECT_TIMEOUT_MS and a read after
+   * READ_TIMEOUT_MS with a SocketTimeoutException, so an exchange with a router that went silent fails
+   * instead of holding its NeighborChannel forever.
+   */
+  static PacketConnection open(String processIP, int processPort, WireFormat format) throws IOException {
+    Socket socket = new Socket();
+    try {
+      socket.connect(new InetSocketAddress(processIP, processPort), CONNECT_TIMEOUT_MS);
+      socket.setSoTimeout(READ_TIMEOUT_MS);
+      socket.setTcpNoDelay(true);
+      return new PacketConnection(socket, format, new BufferedInputStream(socket.getInputStream()),
+          socket.getOutputStream());
+    } catch (IOException e) {
+      socket.close();
+      throw e;
+    }
+  }
+
+  /**
+   * connect to the Unix domain socket a neighbor on this host listens on. Reads give up after
+   * READ_TIMEOUT_MS as over TCP; see UnixSockets.inputStream for how.
+   */
+  static PacketConnection openUnix(String path, WireFormat format) throws IOException {
+    SocketChannel channel = UnixSockets.connect(path);
+    try {
+      return new PacketConnection(channel, format,
+          new BufferedInputStream(UnixSockets.inputStream(channel, READ_TIMEOUT_MS)), UnixSockets.outputStream(channel));
+    } catch (IOException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  // Wraps a socket opened by a neighbor, using whichever format the neighbor speaks
+  static PacketConnection accept(Socket socket) throws IOException {
+    socket.setTcpNoDelay(true);
+    return accept(socket, socket.getInputStream(), socket.getOutputStream());
+  }
+
+  static PacketConnection accept(SocketChannel channel) throws IOException {
+    return accept(channel, UnixSockets.inputStream(channel, 0), UnixSockets.outputStream(channel));
+  }
+
+  private static PacketConnection accept(Closeable transport, InputStream rawIn, OutputStream rawOut)
+      throws IOException {
+    BufferedInputStream in = new BufferedInputStream(rawIn);
+    in.mark(2);
+    int b0 = in.read();
+    int b1 = in.read();
+    if (b1 < 0) {
+      throw new EOFException();
+    }
+    in.reset();
+    WireFormat format;
+    if (((b0 << 8) | b1) == JAVA_STREAM_MAGIC) {
+      format = WireFormat.JAVA;
+    } else if (b0 == SOSPFCodec.MAGIC_0 && b1 == SOSPFCodec.MAGIC_1) {
+      format = WireFormat.BINARY;
+    } else {
+      throw new IOException("unrecognized stream header " + Integer.toHexString((b0 << 8) | b1));
+    }
+    return new PacketConnection(transport, format, in, rawOut);
+  }
+
+  WireFormat getFormat() {
+    return format;
+  }
+
+  @Override
+  public synchronized void write(SOSPFPacket packet) throws IOException {
+    writeBuffered(packet);
+    flush();
+  }
+
+  @Override
+  public synchronized void writeBuffered(SOSPFPacket packet) throws IOException {
+    if (format == WireFormat.JAVA) {
+      objectOut.writeObject(packet);
+      // The stream is long-lived, so drop the back-reference table; otherwise an LSA that was
+      // mutated since the last write would be sent as a reference to its old state
+      objectOut.reset();
+    } else {
+      SOSPFCodec.writeFrame(dataOut, packet);
+    }
+  }
+
+  @Override
+  public synchronized void flush() throws IOException {
+    if (format == WireFormat.JAVA) {
+      objectOut.flush();
+    } else {
+      dataOut.flush();
+    }
+  }
+
+  @Override
+  public SOSPFPacket read() throws IOException, ClassNotFoundException {
+    if (format == WireFormat.JAVA) {
+      return (SOSPFPacket) objectIn.readObject();
+    }
+    if (!preambleRead) {
+      SOSPFCodec.readPreamble(dataIn);
+      preambleRead = true;
+    }
+    return SOSPFCodec.readFrame(dataIn);
+  }
+
+  @Override
+  public boolean isClosed() {
+    if (transport instanceof Socket) {
+      return ((Socket) transport).isClosed();
+    }
+    return !((SocketChannel) transport).isOpen();
+  }
+
+  @Override
+  public void close() {
+    try {
+      transport.close();
+    } catch (IOException ignored) {
+    }
+  }
+}
@@ -0,0 +1,13 @@
+package socs.network.node;
+
+import socs.network.message.SOSPFPacket;
+
+import java.io.IOException;
+
+/**
+ * the connection a packet arrived on, used by the router to answer HELLO, CONNECT and attach requests
+ */
+interface PacketSink {
+
+  void write(SOSPFPacket packet) throws IOException;
+}
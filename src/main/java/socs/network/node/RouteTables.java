@@ -0,0 +1,195 @@
+package socs.network.node;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Routing tables for the `routes` command.
+ * <p/>
+ * Everything is written line by line to the given stream, so a table for thousands of routers is never
+ * held as one String:
+ * - printLocal: this router's table, read straight from the shortest path tree it already maintains,
+ * with every equal-cost next hop
+ * - printFrom: the table another router would compute, one Dijkstra over the snapshot's CSR graph
+ * - printAllPairs: per-source reachability and cost statistics for every router, with the per-source
+ * Dijkstra runs spread over a ForkJoinPool
+ */
+class RouteTables {
+
+  private static final String ROW_FORMAT = "%-16s %8s  %-16s %s%n";
+  private static final String SUMMARY_FORMAT = "%-16s %9s %9s %9s%n";
+  // sources per fork-join leaf; each leaf reuses one set of SPF arrays for all of them
+  private static final int SOURCES_PER_TASK = 8;
+
+  private RouteTables() {
+  }
+
+  static void printLocal(LinkStateDatabase.Snapshot snapshot, PrintStream out) {
+    ShortestPathTree tree = snapshot.tree;
+    out.printf(ROW_FORMAT, "destination", "cost", "next hops", "path");
+    List<String> destinations = tree.destinations();
+    Collections.sort(destinations);
+    for (String destination : destinations) {
+      out.printf(ROW_FORMAT, destination, tree.distance(destination),
+          String.join(",", tree.nextHops(destination)),
+          String.join(" -> ", tree.pathTo(destination)));
+    }
+    out.println(destinations.size() + " reachable destinations");
+  }
+
+  static void printFrom(LinkStateDatabase.Snapshot snapshot, String sourceIP, PrintStream out) {
+    WeighedGraph.Csr csr = snapshot.csr();
+    int source = csr.indexOf(sourceIP);
+    if (source < 0) {
+      out.println("Unknown router " + sourceIP);
+      return;
+    }
+    int n = csr.nodeCount();
+    int[] distance = new int[n];
+    int[] parent = new int[n];
+    IndexedMinHeap heap = new IndexedMinHeap();
+    heap.ensureCapacity(n);
+    csr.shortestPaths(source, distance, parent, heap);
+    int[] firstHop = firstHops(source, parent, distance, n);
+
+    Integer[] order = sortedIndices(csr);
+    out.printf(ROW_FORMAT, "destination", "cost", "next hop", "path");
+    int reachable = 0;
+    StringBuilder path = new StringBuilder();
+    int[] stack = new int[n];
+    for (int v : order) {
+      if (v == source || distance[v] == IncrementalShortestPath.UNREACHABLE) {
+        continue;
+      }
+      reachable++;
+      int depth = 0;
+      for (int hop = v; hop >= 0; hop = parent[hop]) {
+        stack[depth++] = hop;
+      }
+      path.setLength(0);
+      while (depth > 0) {
+        path.append(csr.ids[stack[--depth]]);
+        if (depth > 0) {
+          path.append(" -> ");
+        }
+      }
+      out.printf(ROW_FORMAT, csr.ids[v], distance[v], csr.ids[firstHop[v]], path);
+    }
+    out.println(reachable + " reachable destinations from " + sourceIP);
+  }
+
+  static void printAllPairs(LinkStateDatabase.Snapshot snapshot, ForkJoinPool pool, PrintStream out) {
+    WeighedGraph.Csr csr = snapshot.csr();
+    int n = csr.nodeCount();
+    int[] reachable = new int[n];
+    int[] maxCost = new int[n];
+    long[] totalCost = new long[n];
+
+    long start = System.nanoTime();
+    pool.invoke(new SourceRange(csr, 0, n, reachable, maxCost, totalCost));
+    long elapsedMs = (System.nanoTime() - start) / 1000000;
+
+    out.printf(SUMMARY_FORMAT, "source", "reachable", "max cost", "avg cost");
+    long pairs = 0;
+    long costSum = 0;
+    int diameter = 0;
+    for (int u : sortedIndices(csr)) {
+      pairs += reachable[u];
+      costSum += totalCost[u];
+      diameter = Math.max(diameter, maxCost[u]);
+      String average = reachable[u] == 0 ? "-" : String.format("%.2f", (double) totalCost[u] / reachable[u]);
+      out.printf(SUMMARY_FORMAT, csr.ids[u], reachable[u], maxCost[u], average);
+    }
+    long possible = (long) n * (n - 1);
+    out.println("routers: " + n + ", reachable pairs: " + pairs + "/" + possible + ", diameter: " + diameter
+        + ", average path cost: " + (pairs == 0 ? "-" : String.format("%.2f", (double) costSum / pairs))
+        + " (" + elapsedMs + " ms, parallelism " + pool.getParallelism() + ")");
+  }
+
+  // first router after the source on the way to every node, -1 where there is none
+  private static int[] firstHops(int source, int[] parent, int[] distance, int n) {
+    int[] hop = new int[n];
+    Arrays.fill(hop, -1);
+    for (int v = 0; v < n; v++) {
+      if (v == source || distance[v] == IncrementalShortestPath.UNREACHABLE || hop[v] >= 0) {
+        continue;
+      }
+      int current = v;
+      while (hop[current] < 0 && parent[current] != source) {
+        current = parent[current];
+      }
+      int first = hop[current] >= 0 ? hop[current] : current;
+      for (int c = v; c != current; c = parent[c]) {
+        hop[c] = first;
+      }
+      hop[current] = first;
+    }
+    return hop;
+  }
+
+  private static Integer[] sortedIndices(WeighedGraph.Csr csr) {
+    Integer[] order = new Integer[csr.nodeCount()];
+    for (int i = 0; i < order.length; i++) {
+      order[i] = i;
+    }
+    Arrays.sort(order, (a, b) -> csr.ids[a].compareTo(csr.ids[b]));
+    return order;
+  }
+
+  // SPF from every source in [from, to); each source writes only its own slot of the result arrays
+  private static class SourceRange extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final WeighedGraph.Csr csr;
+    private final int from;
+    private final int to;
+    private final int[] reachable;
+    private final int[] maxCost;
+    private final long[] totalCost;
+
+    SourceRange(WeighedGraph.Csr csr, int from, int to, int[] reachable, int[] maxCost, long[] totalCost) {
+      this.csr = csr;
+      this.from = from;
+      this.to = to;
+      this.reachable = reachable;
+      this.maxCost = maxCost;
+      this.totalCost = totalCost;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from > SOURCES_PER_TASK) {
+        int mid = (from + to) >>> 1;
+        invokeAll(new SourceRange(csr, from, mid, reachable, maxCost, totalCost),
+            new SourceRange(csr, mid, to, reachable, maxCost, totalCost));
+        return;
+      }
+      int n = csr.nodeCount();
+      int[] distance = new int[n];
+      int[] parent = new int[n];
+      IndexedMinHeap heap = new IndexedMinHeap();
+      heap.ensureCapacity(n);
+      for (int source = from; source < to; source++) {
+        csr.shortestPaths(source, distance, parent, heap);
+        int count = 0;
+        int max = 0;
+        long total = 0;
+        for (int v = 0; v < n; v++) {
+          if (v != source && distance[v] != IncrementalShortestPath.UNREACHABLE) {
+            count++;
+            max = Math.max(max, distance[v]);
+            total += distance[v];
+          }
+        }
+        reachable[source] = count;
+        maxCost[source] = max;
+        totalCost[source] = total;
+      }
+    }
+  }
+}
@@ -6,47 +6,96 @@ import socs.network.message.SOSPFPacket;
 import socs.network.util.Configuration;
 
 import java.io.BufferedReader;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.Socket;
+import java.net.SocketException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Vector;
 import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.FutureTask;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 
 public class Router {
 
+  // how long a database exchange may wait on the neighbor's summary or on requested LSAs
+  static final long DATABASE_EXCHANGE_TIMEOUT_MS = 2000;
+  static final int DATABASE_REQUEST_ATTEMPTS = 3;
+  // platform threads writing application messages; each data channel is drained by one at a time
+  static final int DATA_WRITER_THREADS = 4;
+  // platform threads writing control packets for the nio network layer
+  static final int SEND_THREADS = 2;
+
   protected LinkStateDatabase lsd;
 
   RouterDescription rd = new RouterDescription();
   private final NetworkLayer networkLayer;
   private final int defaultLinkWeight = 1;
+  // encoding for packets this router originates; see WireFormat
+  private final WireFormat wireFormat;
+  // platform or virtual threads for connection handlers and outbound sends; see ExecutionMode
+  private final ExecutionMode executionMode;
+  // null in platform mode with the blocking network layer, where sends run on the calling thread
+  private final ExecutorService sendExecutor;
+  // writes application messages to the links' data channels; the send executor in virtual mode
+  private final ExecutorService dataExecutor;
+  // coalesces LSAUPDATEs per neighbor and rate-limits self LSA origination
+  private final FloodScheduler floodScheduler;
+  // keepalive HELLOs and per-neighbor dead timers
+  private final Keepalive keepalive;
+  // MaxAge purge and self LSA refresh
+  private final LsaAging aging;
+  // LSA instances already processed, so repeated copies of a flood are dropped early
+  private final SeenLsaCache seenLsas = new SeenLsaCache(SeenLsaCache.DEFAULT_SLOTS);
+  // the sendbulk command
+  private final TrafficGenerator traffic = new TrafficGenerator(this);
   private volatile boolean started = false;
+  // answer to attach requests when they are not asked on the terminal: true accepts, false rejects
+  private final Boolean attachAnswer;
+
+  final NeighborTable neighbors;
 
-  Link[] ports = new Link[4];
+  // destination => next-hop links, valid for one LSDB version; null when ports changed
+  private volatile ForwardingTable forwardingTable;
 
   private BufferedReader inputReader = new BufferedReader(new InputStreamReader(System.in));
 
-  // Background threads enqueue attach requests here; terminal thread prompts Y/N.
+  // Background threads enqueue attach requests here; the terminal thread prompts Y/N and answers them.
   private ConcurrentLinkedQueue<PendingRequest> pendingRequests = new ConcurrentLinkedQueue<>();
 
   private static class PendingRequest {
     SOSPFPacket helloMsg;
-    Socket socket;
-    ObjectOutputStream out;
+    PacketSink out;
     boolean approved;
-    CountDownLatch latch = new CountDownLatch(1);
 
-    PendingRequest(SOSPFPacket helloMsg, Socket socket, ObjectOutputStream out) {
+    PendingRequest(SOSPFPacket helloMsg, PacketSink out) {
       this.helloMsg = helloMsg;
-      this.socket = socket;
       this.out = out;
     }
   }
 
   public Router(Configuration config) {
+    this(config, null);
+  }
+
+  /**
+   * @param network creates the network layer for this router instead of the configured TCP listener,
+   *                e.g. a SimulatedNetwork endpoint
+   */
+  Router(Configuration config, Function<Router, NetworkLayer> network) {
     rd.simulatedIPAddress = config.getString("socs.network.router.ip");
     rd.processIPAddress = "127.0.0.1";
 
@@ -66,8 +115,125 @@ public class Router {
       }
     }
 
-    lsd = new LinkStateDatabase(rd);
-    networkLayer = new NetworkLayer(this);
+    WireFormat format = WireFormat.BINARY;
+    try {
+      format = WireFormat.parse(config.getString("socs.network.router.wireFormat"));
+    } catch (IllegalArgumentException e) {
+      System.err.println(e.getMessage() + "; defaulting to binary");
+    } catch (Exception ignored) {
+    }
+    wireFormat = format;
+
+    // neighbors on this host that have one too talk to us over it instead of TCP
+    try {
+      rd.socketPath = config.getString("socs.network.router.unixSocket").trim();
+    } catch (Exception ignored) {
+    }
+    if (rd.socketPath != null && !UnixSockets.available()) {
+      System.err.println("Unix domain sockets need Java 16 or newer (running " + System.getProperty("java.version")
+          + "); using TCP only");
+      rd.socketPath = null;
+    }
+
+    ExecutionMode mode = ExecutionMode.PLATFORM;
+    try {
+      mode = ExecutionMode.parse(config.getString("socs.network.router.threads"));
+    } catch (IllegalArgumentException e) {
+      System.err.println(e.getMessage() + "; defaulting to platform threads");
+    } catch (Exception ignored) {
+    }
+    executionMode = mode;
+
+    // "prompt" asks on the terminal; "accept" or "reject" answers every request without a terminal
+    Boolean answer = null;
+    try {
+      String policy = config.getString("socs.network.router.attachRequests").trim();
+      if (policy.equalsIgnoreCase("accept")) {
+        answer = true;
+      } else if (policy.equalsIgnoreCase("reject")) {
+        answer = false;
+      } else if (!policy.equalsIgnoreCase("prompt")) {
+        System.err.println("Unknown attachRequests " + policy + "; asking on the terminal");
+      }
+    } catch (Exception ignored) {
+    }
+    attachAnswer = answer;
+
+    dataExecutor = executionMode == ExecutionMode.VIRTUAL ? executionMode.newSendExecutor()
+        : executionMode.newWorkerExecutor(DATA_WRITER_THREADS, "router-data");
+
+    long floodDelay = FloodScheduler.DEFAULT_FLOOD_DELAY_MS;
+    try {
+      floodDelay = config.getInt("socs.network.router.floodDelay");
+    } catch (Exception ignored) {
+    }
+    long minLsInterval = FloodScheduler.DEFAULT_MIN_LS_INTERVAL_MS;
+    try {
+      minLsInterval = config.getInt("socs.network.router.minLsInterval");
+    } catch (Exception ignored) {
+    }
+    floodScheduler = new FloodScheduler(this, floodDelay, minLsInterval);
+
+    int maxNeighbors = NeighborTable.DEFAULT_MAX_NEIGHBORS;
+    try {
+      maxNeighbors = config.getInt("socs.network.router.maxNeighbors");
+    } catch (Exception ignored) {
+    }
+    if (maxNeighbors <= 0) {
+      System.err.println("socs.network.router.maxNeighbors must be positive; defaulting to " + NeighborTable.DEFAULT_MAX_NEIGHBORS);
+      maxNeighbors = NeighborTable.DEFAULT_MAX_NEIGHBORS;
+    }
+    neighbors = new NeighborTable(maxNeighbors);
+
+    long helloInterval = Keepalive.DEFAULT_HELLO_INTERVAL_MS;
+    try {
+      helloInterval = config.getInt("socs.network.router.helloInterval");
+    } catch (Exception ignored) {
+    }
+    long deadInterval = helloInterval * Keepalive.DEAD_INTERVAL_HELLOS;
+    try {
+      deadInterval = config.getInt("socs.network.router.deadInterval");
+    } catch (Exception ignored) {
+    }
+    if (helloInterval > 0 && deadInterval <= helloInterval) {
+      System.err.println("socs.network.router.deadInterval must be longer than the hello interval; using "
+          + helloInterval * Keepalive.DEAD_INTERVAL_HELLOS + " ms");
+      deadInterval = helloInterval * Keepalive.DEAD_INTERVAL_HELLOS;
+    }
+    keepalive = new Keepalive(this, helloInterval, deadInterval);
+
+    int maxAge = LinkStateDatabase.DEFAULT_MAX_AGE;
+    try {
+      maxAge = config.getInt("socs.network.router.maxAge");
+    } catch (Exception ignored) {
+    }
+    if (maxAge < 2 || maxAge > 0xffff) {
+      System.err.println("socs.network.router.maxAge must be between 2 and 65535 seconds; defaulting to "
+          + LinkStateDatabase.DEFAULT_MAX_AGE);
+      maxAge = LinkStateDatabase.DEFAULT_MAX_AGE;
+    }
+    int refreshTime = maxAge / 2;
+    try {
+      refreshTime = config.getInt("socs.network.router.lsRefreshTime");
+    } catch (Exception ignored) {
+    }
+    if (refreshTime <= 0 || refreshTime >= maxAge) {
+      System.err.println("socs.network.router.lsRefreshTime must be below MaxAge; using " + maxAge / 2);
+      refreshTime = maxAge / 2;
+    }
+    String dataDir = null;
+    try {
+      dataDir = config.getString("socs.network.router.dataDir");
+    } catch (Exception ignored) {
+    }
+    DurableLsdb durable = dataDir != null ? DurableLsdb.open(dataDir, rd.simulatedIPAddress) : null;
+    lsd = new LinkStateDatabase(rd, maxAge, durable);
+    aging = new LsaAging(this, lsd, refreshTime);
+    networkLayer = network != null ? network.apply(this) : createNetworkLayer(config);
+    // the nio layer runs every handler on a few shared workers, so even with platform threads a send
+    // from a handler is posted instead of written on the worker
+    sendExecutor = executionMode == ExecutionMode.VIRTUAL ? dataExecutor
+        : networkLayer instanceof NioNetworkLayer ? executionMode.newWorkerExecutor(SEND_THREADS, "router-send") : null;
     try {
       networkLayer.start();
     } catch (IOException e) {
@@ -75,6 +241,31 @@ public class Router {
     }
   }
 
+  // socs.network.router.networkLayer picks the listener: "blocking" (thread per connection) or "nio"
+  private NetworkLayer createNetworkLayer(Configuration config) {
+    String mode = "blocking";
+    try {
+      mode = config.getString("socs.network.router.networkLayer").trim();
+    } catch (Exception ignored) {
+    }
+    if (mode.equalsIgnoreCase("nio")) {
+      if (wireFormat != WireFormat.BINARY) {
+        System.err.println("nio network layer needs wireFormat = binary; using the blocking network layer");
+        return new NetworkLayer(this, executionMode);
+      }
+      int threads = 2;
+      try {
+        threads = config.getInt("socs.network.router.nioThreads");
+      } catch (Exception ignored) {
+      }
+      return new NioNetworkLayer(this, executionMode, threads);
+    }
+    if (!mode.equalsIgnoreCase("blocking")) {
+      System.err.println("Unknown network layer " + mode + "; using the blocking network layer");
+    }
+    return new NetworkLayer(this, executionMode);
+  }
+
   /**
    * output the shortest path to the given destination ip
    * <p/>
@@ -91,28 +282,44 @@ public class Router {
     System.out.println(path);
   }
 
+  /**
+   * print a routing table. With no argument: this router's table from its shortest path tree. With a
+   * simulated IP: the table that router computes from our database. With "all": statistics for every
+   * source, computed in parallel.
+   */
+  private void processRoutes(String argument) {
+    LinkStateDatabase.Snapshot snapshot = lsd.snapshot();
+    if (argument == null) {
+      RouteTables.printLocal(snapshot, System.out);
+    } else if (argument.equals("all")) {
+      RouteTables.printAllPairs(snapshot, ForkJoinPool.commonPool(), System.out);
+    } else {
+      RouteTables.printFrom(snapshot, argument, System.out);
+    }
+  }
+
   /**
    * disconnect with the router identified by the given destination ip address
    * Notice: this command should trigger the synchronization of database
    *
    * @param portNumber the port number which the link attaches at
    */
-  private void processDisconnect(int portNumber) {
-      if (portNumber < 0 || portNumber >= ports.length) {
-        System.out.println("Invalid port number. Must be between 0 and " + (ports.length - 1));
+  void processDisconnect(int portNumber) {
+      if (portNumber < 0 || portNumber >= neighbors.capacity()) {
+        System.out.println("Invalid port number. Must be between 0 and " + (neighbors.capacity() - 1));
         return;
       }
-      Link link = ports[portNumber];
+      Link link = neighbors.get(portNumber);
       if (link == null) {
         System.out.println("No link attached at port " + portNumber);
         return;
       }
       String neighborIp = link.router2 != null ? link.router2.simulatedIPAddress : null;
       sendDisconnectNotification(link);
-      ports[portNumber] = null;
+      releasePort(portNumber);
       boolean removed = removeNeighborFromSelfLsa(neighborIp, portNumber);
       if (removed) {
-        floodLsaUpdate(neighborIp);
+        floodSelfLsa();
       }
       
   }
@@ -124,7 +331,7 @@ public class Router {
    * <p/>
    * NOTE: this command should not trigger link database synchronization
    */
-  private void processAttach(String processIP, short processPort, String simulatedIP, short weight) {
+  void processAttach(String processIP, short processPort, String simulatedIP, short weight) {
     if (weight <= 0) {
       System.out.println("Invalid weight (must be > 0): " + weight);
       return;
@@ -135,46 +342,45 @@ public class Router {
       return;
     }
 
-    int portSlot = -1;
-    for (int i = 0; i < ports.length; i++) {
-      if (ports[i] == null) {
-        portSlot = i;
-        break;
-      }
-    }
+    int portSlot = neighbors.freePort();
     if (portSlot == -1) {
       System.err.println("All ports are full.");
       return;
     }
 
-    try (Socket socket = new Socket(processIP, processPort)) {
-      ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
-      out.flush();
-      ObjectInputStream in = new ObjectInputStream(socket.getInputStream());
+    RouterDescription rd1 = new RouterDescription();
+    rd1.processIPAddress = processIP;
+    rd1.processPortNumber = processPort;
+    rd1.simulatedIPAddress = simulatedIP;
 
+    // The socket opened for the attach handshake becomes the link's persistent channel
+    NeighborChannel channel = newChannel(rd1);
+    try {
       SOSPFPacket hello = buildHelloPacket(simulatedIP);
       hello.linkWeight = weight;
 
-      out.writeObject(hello);
-      out.flush();
-
-      SOSPFPacket response = (SOSPFPacket) in.readObject();
+      SOSPFPacket response = channel.exchange(hello);
 
       if (response.sospfType == 0) {
-        RouterDescription rd1 = new RouterDescription();
-        rd1.processIPAddress = processIP;
-        rd1.processPortNumber = processPort;
-        rd1.simulatedIPAddress = simulatedIP;
+        if (learnSocketPath(rd1, response)) {
+          // the handshake went over TCP; everything after it goes over the Unix domain socket
+          channel.close();
+        }
         rd1.status = RouterStatus.INIT;
         System.out.println("set " + simulatedIP + " STATE to INIT;");
-        Link newLink = new Link(rd, rd1, portSlot, weight);
-        ports[portSlot] = newLink;
+        Link newLink = new Link(rd, rd1, portSlot, weight, channel);
+        if (!addLink(newLink)) {
+          System.err.println("Port " + portSlot + " or " + simulatedIP + " was taken while attaching");
+          return;
+        }
         System.out.println("successfully attached to " + simulatedIP);
       } else {
+        channel.close();
         System.out.println("Connection rejected by " + simulatedIP);
       }
       
     } catch (IOException | ClassNotFoundException e) {
+      channel.close();
       System.err.println("Failed to attach to " + simulatedIP + ": " + e.getMessage());
     }
   }
@@ -186,124 +392,190 @@ public class Router {
    * The intuition is that if router2 is an unknown/anomaly router, it is always safe to reject the attached request from router2.
    */
   void requestHandler(Socket socket) {
-    try (Socket s = socket) {
-      ObjectOutputStream out = new ObjectOutputStream(s.getOutputStream());
-      out.flush();
-      ObjectInputStream in = new ObjectInputStream(s.getInputStream());
-
-      SOSPFPacket packet = (SOSPFPacket) in.readObject();
-      if (packet.sospfType == 1) {
-        handleLsaUpdate(packet);
-        return;
-      }
-      if (packet.sospfType == 2) {
-        handleDisconnectPacket(packet);
-        return;
-      }
-      if (packet.sospfType == 3) {
-        handleConnectPacket(packet, out);
-        return;
-      }
-      if (packet.sospfType == 4) {
-        handleApplicationMessage(packet, out);
-        return;
-      }
-      if (packet.sospfType != 0) {
-        return;
+    try {
+      serve(PacketConnection.accept(socket));
+    } catch (EOFException e) {
+      // peer connected and left without sending anything
+    } catch (IOException e) {
+      System.err.println("Error handling request: " + e);
+      try {
+        socket.close();
+      } catch (IOException ignored) {
       }
+    }
+  }
 
-      SOSPFPacket hello = packet;
-      System.out.println("received HELLO from " + hello.srcIP + ";");
-
-      Link existingLink = findLinkBySimulatedIP(hello.srcIP);
-      if (existingLink != null) {
-        handleHelloForExistingLink(existingLink, out);
-        return;
+  // Same as above, for a neighbor on this host that connected over the Unix domain socket
+  void requestHandler(SocketChannel channel) {
+    try {
+      serve(PacketConnection.accept(channel));
+    } catch (EOFException e) {
+      // peer connected and left without sending anything
+    } catch (IOException e) {
+      System.err.println("Error handling request: " + e);
+      try {
+        channel.close();
+      } catch (IOException ignored) {
       }
+    }
+  }
 
-      PendingRequest pendingRequest = new PendingRequest(hello, s, out);
-      pendingRequests.add(pendingRequest);
-      pendingRequest.latch.await();
-
-      if (pendingRequest.approved) {
-        int portSlot = -1;
-        synchronized (ports) {
-          for (int i = 0; i < ports.length; i++) {
-            if (ports[i] == null) {
-              portSlot = i;
-              break;
-            }
-          }
-        }
-
-        if (portSlot == -1) {
-          System.out.println("No available ports. Rejecting request.");
-          SOSPFPacket reject = new SOSPFPacket();
-          reject.sospfType = -1;
-          out.writeObject(reject);
-          out.flush();
+  // Neighbors keep their channel open, so serve packets until the peer closes it
+  private void serve(PacketConnection conn) {
+    try (PacketConnection c = conn) {
+      while (true) {
+        SOSPFPacket packet;
+        try {
+          packet = c.read();
+        } catch (EOFException | SocketException | ClosedChannelException e) {
           return;
         }
+        handlePacket(packet, c);
+      }
+    } catch (IOException | ClassNotFoundException e) {
+      System.err.println("Error handling request: " + e);
+    }
+  }
 
-        RouterDescription rd2 = new RouterDescription();
-        rd2.processIPAddress = hello.srcProcessIP;
-        rd2.simulatedIPAddress = hello.srcIP;
-        rd2.processPortNumber = hello.srcProcessPort;
-        rd2.status = RouterStatus.INIT;
-        System.out.println("set " + hello.srcIP + " STATE to INIT;");
+  void handlePacket(SOSPFPacket packet, PacketSink out) throws IOException {
+    if (packet.sospfType == 1) {
+      heardFrom(packet.srcIP);
+      handleLsaUpdate(packet);
+      return;
+    }
+    if (packet.sospfType == 2) {
+      handleDisconnectPacket(packet);
+      return;
+    }
+    if (packet.sospfType == 3) {
+      handleConnectPacket(packet, out);
+      return;
+    }
+    if (packet.sospfType == 4) {
+      handleApplicationMessage(packet);
+      return;
+    }
+    if (packet.sospfType == 5) {
+      heardFrom(packet.srcIP);
+      handleDatabaseDescription(packet);
+      return;
+    }
+    if (packet.sospfType == 6) {
+      heardFrom(packet.srcIP);
+      handleLinkStateRequest(packet);
+      return;
+    }
+    if (packet.sospfType != 0) {
+      return;
+    }
 
-        int inboundWeight = pendingRequest.helloMsg.linkWeight > 0 ? pendingRequest.helloMsg.linkWeight : defaultLinkWeight;
-        Link newLink = new Link(rd, rd2, portSlot, inboundWeight);
+    SOSPFPacket hello = packet;
+    if (hello.keepalive) {
+      // keepalives are not answered, and one from a router we have no link to is just dropped
+      heardFrom(hello.srcIP);
+      return;
+    }
+    System.out.println("received HELLO from " + hello.srcIP + ";");
 
-        synchronized (ports) {
-          ports[portSlot] = newLink;
-        }
+    Link existingLink = findLinkBySimulatedIP(hello.srcIP);
+    if (existingLink != null) {
+      if (learnSocketPath(existingLink.router2, hello)) {
+        reconnect(existingLink);
+      }
+      handleHelloForExistingLink(existingLink, out);
+      return;
+    }
 
-        SOSPFPacket accept = buildHelloPacket(hello.srcIP);
-        out.writeObject(accept);
-        out.flush();
-        System.out.println("accepted attach request from " + hello.srcIP);
-      } else {
+    PendingRequest pendingRequest = new PendingRequest(hello, out);
+    if (attachAnswer == null) {
+      // answered from the terminal by processPendingRequests; nothing waits for it here, so the thread
+      // that read the HELLO (possibly a shared nio worker) goes on with other packets meanwhile
+      pendingRequests.add(pendingRequest);
+      return;
+    }
+    pendingRequest.approved = attachAnswer;
+    answerAttachRequest(pendingRequest);
+  }
+
+  // Adds the link and accepts, or rejects, an attach request once it has an answer
+  private void answerAttachRequest(PendingRequest pendingRequest) throws IOException {
+    SOSPFPacket hello = pendingRequest.helloMsg;
+    PacketSink out = pendingRequest.out;
+    if (pendingRequest.approved) {
+      int portSlot = neighbors.freePort();
+      if (portSlot == -1) {
+        System.out.println("No available ports. Rejecting request.");
         sendReject(out);
-        System.out.println("rejected attach request from " + hello.srcIP);
+        return;
       }
-    } catch (IOException | ClassNotFoundException | InterruptedException e) {
-      System.err.println("Error handling request: " + e);
-      try {
-        socket.close();
-      } catch (IOException ignored) {
+
+      RouterDescription rd2 = new RouterDescription();
+      rd2.processIPAddress = hello.srcProcessIP;
+      rd2.simulatedIPAddress = hello.srcIP;
+      rd2.processPortNumber = hello.srcProcessPort;
+      learnSocketPath(rd2, hello);
+      rd2.status = RouterStatus.INIT;
+      System.out.println("set " + hello.srcIP + " STATE to INIT;");
+
+      int inboundWeight = pendingRequest.helloMsg.linkWeight > 0 ? pendingRequest.helloMsg.linkWeight : defaultLinkWeight;
+      Link newLink = new Link(rd, rd2, portSlot, inboundWeight, newChannel(rd2));
+      if (!addLink(newLink)) {
+        System.out.println("Port " + portSlot + " or " + hello.srcIP + " was taken meanwhile. Rejecting request.");
+        sendReject(out);
+        return;
       }
+
+      SOSPFPacket accept = buildHelloPacket(hello.srcIP);
+      out.write(accept);
+      System.out.println("accepted attach request from " + hello.srcIP);
+    } else {
+      sendReject(out);
+      System.out.println("rejected attach request from " + hello.srcIP);
     }
   }
 
-  private void processStart() {
+  void processStart() {
     started = true;
-    for (Link link : ports) {
-      if (link != null) {
-        try (Socket socket = new Socket(link.router2.processIPAddress, link.router2.processPortNumber)) {
-          ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
-          out.flush();
-          ObjectInputStream in = new ObjectInputStream(socket.getInputStream());
-
-          SOSPFPacket hello = buildHelloPacket(link.router2.simulatedIPAddress);
-          out.writeObject(hello);
-          out.flush();
-
-          SOSPFPacket response = (SOSPFPacket) in.readObject();
-
-          if (response.sospfType == 0) {
-            if (link.router2.status != RouterStatus.TWO_WAY) {
-              link.router2.status = RouterStatus.TWO_WAY;
-              System.out.println("set " + link.router2.simulatedIPAddress + " state to TWO_WAY");
-              updateLocalLsaForLink(link);
-            }
+    // In virtual mode every HELLO exchange runs at once on its own virtual thread; in platform mode
+    // each one runs inline below, as before. State changes are always applied here, one link at a time.
+    List<Link> links = new ArrayList<>();
+    List<FutureTask<SOSPFPacket>> replies = new ArrayList<>();
+    for (Link link : neighbors.links()) {
+      SOSPFPacket hello = buildHelloPacket(link.router2.simulatedIPAddress);
+      NeighborChannel channel = link.channel;
+      FutureTask<SOSPFPacket> reply = new FutureTask<>(() -> channel.exchange(hello));
+      if (sendExecutor != null) {
+        sendExecutor.execute(reply);
+      }
+      links.add(link);
+      replies.add(reply);
+    }
+    for (int i = 0; i < links.size(); i++) {
+      Link link = links.get(i);
+      FutureTask<SOSPFPacket> reply = replies.get(i);
+      try {
+        if (sendExecutor == null) {
+          reply.run();
+        }
+        SOSPFPacket response = reply.get();
+
+        if (response.sospfType == 0) {
+          if (learnSocketPath(link.router2, response)) {
+            reconnect(link);
+          }
+          if (!adjacent(link)) {
+            link.router2.status = RouterStatus.TWO_WAY;
+            System.out.println("set " + link.router2.simulatedIPAddress + " state to TWO_WAY");
+            startAdjacency(link);
+          } else {
+            keepalive.heard(link);
           }
-        } catch (Exception e) {
-          System.err.println("Failed to send HELLO to " + link.router2.simulatedIPAddress + ": " + e.getMessage());
         }
+      } catch (Exception e) {
+        Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+        System.err.println("Failed to send HELLO to " + link.router2.simulatedIPAddress + ": " + cause.getMessage());
       }
     }
-    floodLsaUpdate(null);
   }
 
   private SOSPFPacket buildHelloPacket(String dstIP) {
@@ -314,23 +586,14 @@ public class Router {
     hello.srcIP = rd.simulatedIPAddress;
     hello.dstIP = dstIP;
     hello.neighborID = rd.simulatedIPAddress;
+    hello.srcSocketPath = rd.socketPath;
     return hello;
   }
 
-  private void sendReject(ObjectOutputStream out) throws IOException {
+  private void sendReject(PacketSink out) throws IOException {
     SOSPFPacket reject = new SOSPFPacket();
     reject.sospfType = -1;
-    out.writeObject(reject);
-    out.flush();
-  }
-
-  private void sendPacket(SOSPFPacket packet, ObjectOutputStream out) {
-    try {
-      out.writeObject(packet);
-      out.flush();
-    } catch (IOException e) {
-      e.printStackTrace();
-    }
+    out.write(reject);
   }
 
 
@@ -357,33 +620,50 @@ public class Router {
 
     int portSlot = -1;
     if (existingLink == null) {
-      portSlot = findAvailablePortSlot();
+      portSlot = neighbors.freePort();
       if (portSlot == -1) {
         System.err.println("All ports are full.");
         return;
       }
     }
 
-    if (!sendConnectBroadcast(processIP, processPort, simulatedIP, weight)) {
+    RouterDescription neighbor = new RouterDescription();
+    neighbor.processIPAddress = processIP;
+    neighbor.processPortNumber = processPort;
+    neighbor.simulatedIPAddress = simulatedIP;
+
+    NeighborChannel channel = sendConnectBroadcast(neighbor, weight);
+    if (channel == null) {
       return;
     }
 
     if (existingLink != null) {
+      boolean wasTwoWay = adjacent(existingLink);
       existingLink.weight = weight;
       existingLink.router2.processIPAddress = processIP;
       existingLink.router2.processPortNumber = processPort;
-      existingLink.router2.status = RouterStatus.TWO_WAY;
-      updateLocalLsaForLink(existingLink);
+      existingLink.router2.socketPath = neighbor.socketPath;
+      // The neighbor may have moved, keep the channel that just reached it
+      NeighborChannel previous = existingLink.channel;
+      existingLink.channel = channel;
+      previous.close();
+      // the data channel reconnects to the new address on its next message
+      existingLink.data.close();
+      if (wasTwoWay) {
+        updateLocalLsaForLink(existingLink);
+      } else {
+        existingLink.router2.status = RouterStatus.TWO_WAY;
+        startAdjacency(existingLink);
+      }
     } else {
-      RouterDescription neighbor = new RouterDescription();
-      neighbor.processIPAddress = processIP;
-      neighbor.processPortNumber = processPort;
-      neighbor.simulatedIPAddress = simulatedIP;
       neighbor.status = RouterStatus.TWO_WAY;
 
-      Link localLink = new Link(rd, neighbor, portSlot, weight);
-      ports[portSlot] = localLink;
-      updateLocalLsaForLink(localLink);
+      Link localLink = new Link(rd, neighbor, portSlot, weight, channel);
+      if (!addLink(localLink)) {
+        System.err.println("Port " + portSlot + " or " + simulatedIP + " was taken while connecting");
+        return;
+      }
+      startAdjacency(localLink);
     }
 
     System.out.println("Link established with " + simulatedIP);
@@ -399,37 +679,38 @@ public class Router {
     connectPacket.dstIP = simulatedIP;
     connectPacket.neighborID = rd.simulatedIPAddress;
     connectPacket.linkWeight = weight;
+    connectPacket.srcSocketPath = rd.socketPath;
     return connectPacket;
   }
 
-  private boolean sendConnectBroadcast(String processIP, short processPort, String simulatedIP, short weight) {
-    try (Socket socket = new Socket(processIP, processPort);
-         ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
-         ObjectInputStream in = new ObjectInputStream(socket.getInputStream())) {
-      SOSPFPacket connectPacket = buildConnectPacket(processIP, processPort, simulatedIP, weight);
-      out.writeObject(connectPacket);
-      out.flush();
-
-      SOSPFPacket response = (SOSPFPacket) in.readObject();
+  // Returns the channel the CONNECT was accepted on, or null if the neighbor could not be reached or refused
+  private NeighborChannel sendConnectBroadcast(RouterDescription neighbor, short weight) {
+    String simulatedIP = neighbor.simulatedIPAddress;
+    NeighborChannel channel = newChannel(neighbor);
+    try {
+      SOSPFPacket connectPacket = buildConnectPacket(neighbor.processIPAddress, neighbor.processPortNumber, simulatedIP, weight);
+      SOSPFPacket response = channel.exchange(connectPacket);
       if (response != null && response.sospfType == 3) {
-        return true;
+        if (learnSocketPath(neighbor, response)) {
+          channel.close();
+        }
+        return channel;
       }
 
       String remoteReason = (response == null || response.message == null || response.message.trim().isEmpty())
           ? "no reason provided"
           : response.message;
       System.out.println("Connect rejected by " + simulatedIP + ": " + remoteReason);
-      return false;
     } catch (ClassNotFoundException e) {
       System.err.println("Failed to parse connect response from " + simulatedIP + ": " + e.getMessage());
-      return false;
     } catch (IOException e) {
       System.err.println("Failed to connect to " + simulatedIP + ": " + e.getMessage());
-      return false;
     }
+    channel.close();
+    return null;
   }
 
-  private void handleConnectPacket(SOSPFPacket packet, ObjectOutputStream out) {
+  private void handleConnectPacket(SOSPFPacket packet, PacketSink out) {
     if (packet == null || packet.srcIP == null || packet.srcProcessIP == null || packet.srcProcessPort <= 0) {
       sendConnectResponse(out, false, "invalid CONNECT packet");
       return;
@@ -443,17 +724,25 @@ public class Router {
     int inboundWeight = packet.linkWeight > 0 ? packet.linkWeight : defaultLinkWeight;
     Link existing = findLinkBySimulatedIP(packet.srcIP);
     if (existing != null) {
+      boolean wasTwoWay = adjacent(existing);
       existing.weight = inboundWeight;
       existing.router2.processIPAddress = packet.srcProcessIP;
       existing.router2.processPortNumber = packet.srcProcessPort;
-      existing.router2.status = RouterStatus.TWO_WAY;
-      updateLocalLsaForLink(existing);
+      if (learnSocketPath(existing.router2, packet)) {
+        reconnect(existing);
+      }
+      if (wasTwoWay) {
+        updateLocalLsaForLink(existing);
+      } else {
+        existing.router2.status = RouterStatus.TWO_WAY;
+        startAdjacency(existing);
+      }
       sendConnectResponse(out, true, "OK");
       System.out.println("Applied CONNECT packet from " + packet.srcIP + " weight=" + inboundWeight);
       return;
     }
 
-    int portSlot = findAvailablePortSlot();
+    int portSlot = neighbors.freePort();
     if (portSlot == -1) {
       sendConnectResponse(out, false, "no available ports");
       return;
@@ -463,16 +752,20 @@ public class Router {
     neighbor.processIPAddress = packet.srcProcessIP;
     neighbor.processPortNumber = packet.srcProcessPort;
     neighbor.simulatedIPAddress = packet.srcIP;
+    learnSocketPath(neighbor, packet);
     neighbor.status = RouterStatus.TWO_WAY;
 
-    Link newLink = new Link(rd, neighbor, portSlot, inboundWeight);
-    ports[portSlot] = newLink;
-    updateLocalLsaForLink(newLink);
+    Link newLink = new Link(rd, neighbor, portSlot, inboundWeight, newChannel(neighbor));
+    if (!addLink(newLink)) {
+      sendConnectResponse(out, false, "no available ports");
+      return;
+    }
+    startAdjacency(newLink);
     sendConnectResponse(out, true, "OK");
     System.out.println("Applied CONNECT packet from " + packet.srcIP + " weight=" + inboundWeight);
   }
 
-  private void sendConnectResponse(ObjectOutputStream out, boolean accepted, String reason) {
+  private void sendConnectResponse(PacketSink out, boolean accepted, String reason) {
     if (out == null) {
       return;
     }
@@ -482,29 +775,19 @@ public class Router {
       response.srcProcessIP = rd.processIPAddress;
       response.srcProcessPort = rd.processPortNumber;
       response.srcIP = rd.simulatedIPAddress;
+      response.srcSocketPath = accepted ? rd.socketPath : null;
       response.message = reason;
-      out.writeObject(response);
-      out.flush();
+      out.write(response);
     } catch (IOException e) {
       System.err.println("Failed to send CONNECT response: " + e.getMessage());
     }
   }
 
-  private int findAvailablePortSlot() {
-    for (int i = 0; i < ports.length; i++) {
-      if (ports[i] == null) {
-        return i;
-      }
-    }
-    return -1;
-
-  }
-
   /**
    * output the neighbors of the routers
    */
   private void processNeighbors() {
-    socs.network.message.LSA self = lsd._store.get(rd.simulatedIPAddress);
+    socs.network.message.LSA self = lsd.self();
     if (self == null) {
       return;
     }
@@ -515,13 +798,32 @@ public class Router {
     }
   }
 
+  // LSAUPDATE handling since startup: how much of each flood was new and how much was a repeat
+  private void processCounters() {
+    System.out.println("LSAUPDATE packets: " + seenLsas.packetsProcessed.sum() + " processed, "
+        + seenLsas.packetsSuppressed.sum() + " suppressed as duplicates");
+    System.out.println("LSAs: " + seenLsas.lsasProcessed.sum() + " processed, "
+        + seenLsas.lsasSuppressed.sum() + " suppressed as duplicates");
+  }
+
   private void processQuit() {
-    for (int i = 0; i < ports.length; i++) {
-      if (ports[i] != null) {
-        processDisconnect(i);
-      }
+    for (Link link : neighbors.links()) {
+      processDisconnect(link.portNum);
     }
+    shutdown();
+  }
+
+  // Stops the timers, the listener and the send threads without telling the neighbors
+  void shutdown() {
+    floodScheduler.shutdown();
+    keepalive.shutdown();
+    aging.shutdown();
+    lsd.close();
     networkLayer.stop();
+    if (sendExecutor != null) {
+      sendExecutor.shutdown();
+    }
+    dataExecutor.shutdown();
   }
 
   private void updateWeight(String processIP, short processPort,
@@ -533,14 +835,14 @@ public class Router {
    * This change should trigger synchronization of the Link State Database by sending 
    * a Link State Advertisement (LSA) update to all neighboring routers in the topology.
    *
-   * @param portNumber the port number (0-3) to update
+   * @param portNumber the port number (0 to maxNeighbors - 1) to update
    * @param newWeight the new weight/cost for the link attached to this port
    */
-  private void processUpdate(short portNumber, short newWeight) {
+  void processUpdate(short portNumber, short newWeight) {
 
     // validate input and link existence
-    if (portNumber < 0 || portNumber >= ports.length) {
-      System.out.println("Choose a valid port number (0-3)");
+    if (portNumber < 0 || portNumber >= neighbors.capacity()) {
+      System.out.println("Choose a valid port number (0-" + (neighbors.capacity() - 1) + ")");
       return;
     }
     if (newWeight <= 0) {
@@ -549,8 +851,7 @@ public class Router {
     }
 
     // getting the link on the specified port number
-    // set l after checking the port number is valid to avoid ArrayIndexOutOfBoundsException
-    Link l = ports[portNumber];
+    Link l = neighbors.get(portNumber);
 
     if (l == null) {
       System.out.println("No link attached at port " + portNumber);
@@ -591,26 +892,43 @@ public class Router {
       return;
     }
 
-    RouterDescription nextHop = getNextHop(destinationIP);
-    if (nextHop == null) {
+    SOSPFPacket pkt = buildApplicationPacket(destinationIP, message, 0);
+    if (!sendApplicationPacket(pkt, e -> System.err.println("Failed to send application message: " + e.getMessage()))) {
       System.out.println("Path not found");
-      return;
     }
+  }
 
-    SOSPFPacket pkt = new SOSPFPacket();
-    pkt.sospfType = 4;
-    pkt.srcProcessIP = rd.processIPAddress;
-    pkt.srcProcessPort = rd.processPortNumber;
-    pkt.srcIP = rd.simulatedIPAddress;
-    pkt.dstIP = destinationIP;
+  SOSPFPacket buildApplicationPacket(String destinationIP, String message, int flowId) {
+    SOSPFPacket pkt = buildPacket(4, destinationIP);
     pkt.message = message;
+    pkt.flowId = flowId;
+    return pkt;
+  }
 
-    try (Socket socket = new Socket(nextHop.processIPAddress, nextHop.processPortNumber);
-      ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream())) {
-      sendPacket(pkt, out);
-    } catch (IOException e) {
-      System.err.println("Failed to send application message: " + e.getMessage());
+  /**
+   * queue an application message towards its destination
+   *
+   * @return false if there is no path to the destination
+   */
+  boolean sendApplicationPacket(SOSPFPacket packet, Consumer<IOException> onFailure) {
+    Link nextHop = getNextHop(packet.srcIP, packet.dstIP, packet.flowId);
+    if (nextHop == null) {
+      return false;
+    }
+    sendData(nextHop, packet, onFailure);
+    return true;
+  }
+
+  private void processSendBulk(String destinationIP, int count, int size, int rate, int flows) throws InterruptedException {
+    if (destinationIP.equals(rd.simulatedIPAddress)) {
+      System.out.println("sendbulk needs a destination other than this router");
+      return;
+    }
+    if (count <= 0 || size < 0 || rate < 0 || flows <= 0) {
+      System.out.println("count and flows must be positive, size and rate not negative");
+      return;
     }
+    traffic.run(destinationIP, count, size, rate, flows);
   }
 
   /**
@@ -628,30 +946,49 @@ public class Router {
    *
    * @param packet the received application message packet
    */
-  private void handleApplicationMessage(socs.network.message.SOSPFPacket packet, ObjectOutputStream out) {
+  private void handleApplicationMessage(socs.network.message.SOSPFPacket packet) {
     if (packet.dstIP == null || packet.srcIP == null) {
       return;
     }
     if (packet.dstIP.equals(rd.simulatedIPAddress)) {
-      System.out.println("Received message from " + packet.srcIP + ";");
-      System.out.println("Message: " + packet.message);
+      if (packet.bulkKind == SOSPFPacket.BULK_PROBE) {
+        echoProbe(packet);
+      } else if (packet.bulkKind == SOSPFPacket.BULK_ECHO) {
+        traffic.echoReceived(packet);
+      } else {
+        System.out.println("Received message from " + packet.srcIP + ";");
+        System.out.println("Message: " + packet.message);
+      }
       return;
     }
 
-    System.out.println("Forwarding message from " + packet.srcIP + " to " + packet.dstIP);
-    RouterDescription nextHop = getNextHop(packet.dstIP);
+    // sendbulk traffic is forwarded silently; a line per message would be all the router does
+    boolean quiet = packet.bulkKind != 0;
+    if (!quiet) {
+      System.out.println("Forwarding message from " + packet.srcIP + " to " + packet.dstIP);
+    }
+    Link nextHop = getNextHop(packet.srcIP, packet.dstIP, packet.flowId);
     if (nextHop == null) {
-      System.out.println("Path not found");
+      if (!quiet) {
+        System.out.println("Path not found");
+      }
       return;
     }
-    System.out.println("Next hop: " + nextHop.simulatedIPAddress);
-
-    try (Socket fwdSocket = new Socket(nextHop.processIPAddress, nextHop.processPortNumber);
-      ObjectOutputStream fwdOut = new ObjectOutputStream(fwdSocket.getOutputStream())) {
-      sendPacket(packet, fwdOut);
-    } catch (IOException e) {
-      System.err.println("Failed to forward message: " + e.getMessage());
+    if (!quiet) {
+      System.out.println("Next hop: " + nextHop.router2.simulatedIPAddress);
     }
+
+    sendData(nextHop, packet, e -> System.err.println("Failed to forward message: " + e.getMessage()));
+  }
+
+  // The echo keeps the probe's flow, run and timestamp but not its payload
+  private void echoProbe(SOSPFPacket probe) {
+    SOSPFPacket echo = buildApplicationPacket(probe.srcIP, "", probe.flowId);
+    echo.bulkKind = SOSPFPacket.BULK_ECHO;
+    echo.bulkRun = probe.bulkRun;
+    echo.bulkSentNanos = probe.bulkSentNanos;
+    sendApplicationPacket(echo, e -> {
+    });
   }
 
   public void terminal() {
@@ -683,6 +1020,15 @@ public class Router {
             processStart();
           } else if (command.equals("neighbors")) {
             processNeighbors();
+          } else if (command.equals("counters")) {
+            processCounters();
+          } else if (command.equals("routes") || command.startsWith("routes ")) {
+            String[] cmdLine = command.split("\\s+");
+            if (cmdLine.length > 2) {
+              System.out.println("Usage: routes [all | Source IP]");
+              continue;
+            }
+            processRoutes(cmdLine.length == 2 ? cmdLine[1] : null);
           } else if (command.startsWith("detect ")) {
             String[] cmdLine = command.split("\\s+");
             if (cmdLine.length != 2) {
@@ -740,6 +1086,21 @@ public class Router {
             } else {
               System.out.println("Usage: send [Destination IP] [Message]");
             }
+          } else if (command.startsWith("sendbulk ")) {
+            String[] cmdLine = command.split("\\s+");
+            if (cmdLine.length < 4 || cmdLine.length > 6) {
+              System.out.println("Usage: sendbulk [Destination IP] [count] [size] [rate] [flows]");
+              continue;
+            }
+            try {
+              int count = Integer.parseInt(cmdLine[2]);
+              int size = Integer.parseInt(cmdLine[3]);
+              int rate = cmdLine.length > 4 ? Integer.parseInt(cmdLine[4]) : 0;
+              int flows = cmdLine.length > 5 ? Integer.parseInt(cmdLine[5]) : 1;
+              processSendBulk(cmdLine[1], count, size, rate, flows);
+            } catch (NumberFormatException e) {
+              System.out.println("Invalid number: " + e.getMessage());
+            }
           } else if (command.startsWith("update ")) {
             String[] cmdLine = command.split("\\s+");
             if (cmdLine.length != 3) {
@@ -781,10 +1142,13 @@ public class Router {
     System.out.println("  start");
     System.out.println("  neighbors");
     System.out.println("  detect [Destination IP]");
+    System.out.println("  routes [all | Source IP]");
+    System.out.println("  counters");
     System.out.println("  disconnect [port_number]");
     System.out.println("  attach [Process IP] [Process Port] [Simulated IP] [Weight]");
     System.out.println("  connect [Process IP] [Process Port] [Simulated IP] [Weight]");
     System.out.println("  send [Destination IP] [Message]");
+    System.out.println("  sendbulk [Destination IP] [count] [size] [rate] [flows]");
     System.out.println("  quit");
   }
 
@@ -806,7 +1170,11 @@ public class Router {
       } catch (IOException e) {
         pendingRequest.approved = false;
       }
-      pendingRequest.latch.countDown();
+      try {
+        answerAttachRequest(pendingRequest);
+      } catch (IOException e) {
+        System.err.println("Failed to answer attach request from " + pendingRequest.helloMsg.srcIP + ": " + e.getMessage());
+      }
     }
   }
 
@@ -820,139 +1188,397 @@ public class Router {
 
   // Look up the Link object in this router's ports that connects to the neighbor with the given simulated IP
   private Link findLinkBySimulatedIP(String simulatedIP) {
-    if (simulatedIP == null) {
-      return null;
+    return neighbors.get(simulatedIP);
+  }
+
+  private NeighborChannel newChannel(RouterDescription neighbor) {
+    return new NeighborChannel(neighbor, wireFormat, networkLayer);
+  }
+
+  /**
+   * record the Unix domain socket a neighbor advertised in a HELLO or CONNECT, or in its reply to ours.
+   * It is kept only if this router listens on one as well and the neighbor's process IP is on this
+   * host; otherwise the neighbor is reached over TCP.
+   *
+   * @return true if it changed, so connections opened before should be redialed
+   */
+  private boolean learnSocketPath(RouterDescription neighbor, SOSPFPacket packet) {
+    String path = null;
+    if (rd.socketPath != null && packet.srcSocketPath != null && UnixSockets.isLocal(neighbor.processIPAddress)) {
+      path = packet.srcSocketPath;
     }
-    for (Link link : ports) {
-      if (link != null && link.router2 != null
-          && simulatedIP.equals(link.router2.simulatedIPAddress)) {
-        return link;
-      }
+    if (path == null ? neighbor.socketPath == null : path.equals(neighbor.socketPath)) {
+      return false;
     }
-    return null;
+    neighbor.socketPath = path;
+    return true;
+  }
+
+  // Drops the link's open connections; both channels redial with the neighbor's current transport
+  private void reconnect(Link link) {
+    link.channel.close();
+    link.data.close();
+  }
+
+  // Returns false if the link's port or neighbor was taken by a concurrent attach
+  private boolean addLink(Link link) {
+    link.data = newChannel(link.router2);
+    if (!neighbors.add(link)) {
+      link.channel.close();
+      return false;
+    }
+    // next hops resolve to Link objects, so the forwarding table is stale once a port changes
+    forwardingTable = null;
+    return true;
   }
 
-  private void handleHelloForExistingLink(Link link, ObjectOutputStream out) {
+  // Frees the port slot and closes the persistent channel to the neighbor that was attached there
+  private void releasePort(int portNumber) {
+    Link link = neighbors.remove(portNumber);
+    forwardingTable = null;
+    if (link != null) {
+      keepalive.forget(link);
+      link.channel.close();
+      link.data.close();
+    }
+  }
+
+  private void handleHelloForExistingLink(Link link, PacketSink out) {
     RouterStatus current = link.router2.status;
     if (current == null) {
       System.out.println("Received HELLO from existing neighbor " + link.router2.simulatedIPAddress + " with null status. Something is wrong.");
+      // still answer so the sender's channel does not wait on a reply forever
+      try {
+        sendReject(out);
+      } catch (IOException ignored) {
+      }
       return;
     }
-    if (current != RouterStatus.TWO_WAY) {
+    if (!current.adjacent()) {
       link.router2.status = RouterStatus.TWO_WAY;
       System.out.println("set " + link.router2.simulatedIPAddress + " state to TWO_WAY");
-      updateLocalLsaForLink(link);
+      startAdjacency(link);
+    } else {
+      keepalive.heard(link);
     }
 
     try {
       SOSPFPacket helloResponse = buildHelloPacket(link.router2.simulatedIPAddress);
-      out.writeObject(helloResponse);
-      out.flush();
+      out.write(helloResponse);
     } catch (IOException e) {
       System.err.println("Failed to send HELLO reply to " + link.router2.simulatedIPAddress + ": " + e.getMessage());
     }
   }
 
   private void updateLocalLsaForLink(Link link) {
-    socs.network.message.LSA self = lsd._store.get(rd.simulatedIPAddress);
-    if (self == null) {
+    if (editSelfLsaForLink(link)) {
+      floodSelfLsa();
+    }
+  }
+
+  // A neighbor just reached TWO_WAY: advertise the link and send the neighbor a summary of the database
+  // (LSA headers only). Each side requests just the LSAs it lacks from the other's summary.
+  private void startAdjacency(Link link) {
+    keepalive.heard(link);
+    editSelfLsaForLink(link);
+    floodSelfLsa();
+
+    synchronized (link) {
+      // the neighbor's summary may have arrived before its HELLO reply did
+      if (link.summaryReceived) {
+        advanceExchange(link);
+      } else {
+        setStatus(link, RouterStatus.EXCHANGE);
+      }
+    }
+    SOSPFPacket summary = buildPacket(5, link.router2.simulatedIPAddress);
+    summary.lsaArray = new Vector<>(lsd.headers());
+    sendOnLink(link, summary, e -> System.err.println("Failure sending database description to " + link.router2.simulatedIPAddress));
+    floodScheduler.later(() -> exchangeTimedOut(link, 1), DATABASE_EXCHANGE_TIMEOUT_MS);
+  }
+
+  private void handleDatabaseDescription(SOSPFPacket packet) {
+    Link link = findLinkBySimulatedIP(packet.srcIP);
+    if (link == null || packet.lsaArray == null) {
       return;
     }
+    List<LSA> wanted = lsd.newerThanOurs(packet.lsaArray);
+    System.out.println("Received database description from " + packet.srcIP + ": " + packet.lsaArray.size()
+        + " LSAs, requesting " + wanted.size());
+    synchronized (link) {
+      for (LSA header : wanted) {
+        link.requested.put(header.linkStateID, header.lsaSeqNumber);
+      }
+      link.summaryReceived = true;
+      if (adjacent(link)) {
+        advanceExchange(link);
+      }
+    }
+    if (!wanted.isEmpty()) {
+      sendLinkStateRequest(link, wanted);
+    }
+  }
 
-    boolean found = false;
-    for (socs.network.message.LinkDescription ld : self.links) {
-      if (link.router2.simulatedIPAddress.equals(ld.linkID)) {
-        ld.portNum = link.portNum;
-        ld.weight = link.weight;
-        found = true;
-        break;
+  // The neighbor answers with one LSAUPDATE of the LSAs it still holds, queued like any flood
+  private void handleLinkStateRequest(SOSPFPacket packet) {
+    if (packet.lsaArray == null) {
+      return;
+    }
+    List<LSA> lsas = new ArrayList<>();
+    for (LSA header : packet.lsaArray) {
+      LSA ours = lsd.get(header.linkStateID);
+      if (ours != null) {
+        lsas.add(ours);
       }
     }
+    floodScheduler.flood(Collections.singletonList(packet.srcIP), lsas);
+  }
+
+  private void sendLinkStateRequest(Link link, List<LSA> headers) {
+    SOSPFPacket request = buildPacket(6, link.router2.simulatedIPAddress);
+    request.lsaArray = new Vector<>(headers);
+    sendOnLink(link, request, e -> System.err.println("Failure sending link state request to " + link.router2.simulatedIPAddress));
+  }
+
+  // An LSAUPDATE from the neighbor answers the requests for the LSAs it carries
+  private void requestsAnswered(String neighborIp, List<LSA> received) {
+    Link link = findLinkBySimulatedIP(neighborIp);
+    if (link == null || link.requested.isEmpty()) {
+      return;
+    }
+    synchronized (link) {
+      for (LSA lsa : received) {
+        link.requested.remove(lsa.linkStateID);
+      }
+      if (link.router2.status == RouterStatus.LOADING) {
+        advanceExchange(link);
+      }
+    }
+  }
+
+  // Runs on the flood thread when the exchange with the neighbor takes too long. A neighbor that never sent
+  // a summary (e.g. one that predates the exchange) gets the full database instead; lost requests are
+  // sent again a few times before the link is declared FULL anyway, since later floods repair any gap.
+  private void exchangeTimedOut(Link link, int attempt) {
+    if (neighbors.get(link.router2.simulatedIPAddress) != link || !adjacent(link)) {
+      return;
+    }
+    List<LSA> retry = new ArrayList<>();
+    synchronized (link) {
+      if (!link.summaryReceived) {
+        System.out.println("No database description from " + link.router2.simulatedIPAddress + "; sending the full database");
+        sendDatabase(link);
+        setStatus(link, RouterStatus.FULL);
+        return;
+      }
+      if (link.router2.status != RouterStatus.LOADING) {
+        return;
+      }
+      if (attempt >= DATABASE_REQUEST_ATTEMPTS) {
+        System.out.println("Giving up on " + link.requested.size() + " LSAs requested from " + link.router2.simulatedIPAddress);
+        link.requested.clear();
+        setStatus(link, RouterStatus.FULL);
+        return;
+      }
+      for (Map.Entry<String, Integer> entry : link.requested.entrySet()) {
+        LSA header = new LSA();
+        header.linkStateID = entry.getKey();
+        header.lsaSeqNumber = entry.getValue();
+        retry.add(header);
+      }
+    }
+    sendLinkStateRequest(link, retry);
+    floodScheduler.later(() -> exchangeTimedOut(link, attempt + 1), DATABASE_EXCHANGE_TIMEOUT_MS);
+  }
+
+  // Both summaries are in; LOADING until the last requested LSA arrives. Called holding the link's lock.
+  private void advanceExchange(Link link) {
+    setStatus(link, link.requested.isEmpty() ? RouterStatus.FULL : RouterStatus.LOADING);
+  }
+
+  private void setStatus(Link link, RouterStatus status) {
+    if (link.router2.status != status) {
+      link.router2.status = status;
+      System.out.println("set " + link.router2.simulatedIPAddress + " state to " + status);
+    }
+  }
+
+  // true from TWO_WAY on, whatever the state of the database exchange
+  private static boolean adjacent(Link link) {
+    RouterStatus status = link.router2.status;
+    return status != null && status.adjacent();
+  }
+
+  private SOSPFPacket buildPacket(int sospfType, String dstIP) {
+    SOSPFPacket packet = new SOSPFPacket();
+    packet.sospfType = (short) sospfType;
+    packet.srcProcessIP = rd.processIPAddress;
+    packet.srcProcessPort = rd.processPortNumber;
+    packet.srcIP = rd.simulatedIPAddress;
+    packet.dstIP = dstIP;
+    return packet;
+  }
+
+  private boolean editSelfLsaForLink(Link link) {
+    return lsd.editSelfLsa(links -> {
+      for (socs.network.message.LinkDescription ld : links) {
+        if (link.router2.simulatedIPAddress.equals(ld.linkID)) {
+          ld.portNum = link.portNum;
+          ld.weight = link.weight;
+          return true;
+        }
+      }
 
-    if (!found) {
       socs.network.message.LinkDescription ld = new socs.network.message.LinkDescription();
       ld.linkID = link.router2.simulatedIPAddress;
       ld.portNum = link.portNum;
       ld.tosMetrics = 0;
       ld.weight = link.weight;
-      self.links.add(ld);
+      links.add(ld);
+      return true;
+    });
+  }
+
+  // Returns the link towards the next-hop router on the shortest path to destinationIP.
+  // The forwarding table is rebuilt only after the shortest path tree or the ports changed.
+  private Link getNextHop(String sourceIP, String destinationIP, int flowId) {
+    ForwardingTable fib = forwardingTable;
+    ShortestPathTree tree = lsd.shortestPathTree();
+    if (fib == null || fib.version != tree.version) {
+      fib = ForwardingTable.build(tree, neighbors);
+      forwardingTable = fib;
     }
+    return fib.lookup(sourceIP, destinationIP, flowId);
+  }
 
-    self.lsaSeqNumber++;
-    floodLsaUpdate(null);
+  // The self LSA was edited; FloodScheduler originates and floods it once the burst of edits is over
+  private void floodSelfLsa() {
+    floodScheduler.selfLsaChanged();
   }
 
-  // Returns the next-hop router on the shortest path to destinationIP.
-  private RouterDescription getNextHop(String destinationIP) {
-    String path = lsd.getShortestPath(destinationIP);
-    if (path == null) {
-      return null;
+  // Queues only the given LSAs (the ones just installed) for every TWO_WAY neighbor
+  private void floodLsaUpdate(List<socs.network.message.LSA> lsas, String excludedNeighborIp) {
+    if (lsas.isEmpty()) {
+      return;
     }
-    String[] hops = path.split("\\s*->\\s*");
-    if (hops.length < 2) {
-      return null;
+    List<String> targets = twoWayNeighborIPs();
+    if (excludedNeighborIp != null) {
+      targets.remove(excludedNeighborIp);
     }
-    String nextHopIP = extractIPAddress(hops[1]);
-    if (nextHopIP == null) {
-      return null;
-    }
-    Link link = findLinkBySimulatedIP(nextHopIP);
-    if (link == null) {
-      return null;
+    floodScheduler.flood(targets, lsas);
+  }
+
+  // Fallback adjacency sync for a neighbor that sent no summary: it gets every LSA we hold
+  private void sendDatabase(Link link) {
+    floodScheduler.flood(Collections.singletonList(link.router2.simulatedIPAddress), lsd.allLsas());
+  }
+
+  List<String> twoWayNeighborIPs() {
+    List<String> twoWay = new ArrayList<>();
+    for (Link link : neighbors.links()) {
+      if (adjacent(link)) {
+        twoWay.add(link.router2.simulatedIPAddress);
+      }
     }
-    return link.router2;
+    return twoWay;
   }
 
-  private String extractIPAddress(String hopToken) {
-    if (hopToken == null) {
-      return null;
+  // bump the self LSA's sequence number so its pending edits go out as a new instance
+  socs.network.message.LSA originateSelfLsa() {
+    socs.network.message.LSA self = lsd.originateSelfLsa();
+    // neighbors flood it straight back to us
+    seenLsas.record(self, lsd.maxAge());
+    return self;
+  }
+
+  // Called by LsaAging with MaxAge copies of the LSAs it purged, so every other router drops them too
+  void floodPurged(List<socs.network.message.LSA> purged) {
+    for (socs.network.message.LSA lsa : purged) {
+      System.out.println("LSA of " + lsa.linkStateID + " reached MaxAge; flushing it");
     }
-    String trimmed = hopToken.trim();
-    if (trimmed.matches("\\d+\\.\\d+\\.\\d+\\.\\d+")) {
-      return trimmed;
+    floodLsaUpdate(purged, null);
+  }
+
+  // Called by LsaAging when our own LSA is due for a refresh; it goes out with the next flood
+  void refreshSelfLsa() {
+    floodSelfLsa();
+  }
+
+  // Called by FloodScheduler; the batch is dropped if the neighbor is no longer TWO_WAY
+  void sendLsaUpdate(String neighborIp, List<socs.network.message.LSA> lsas) {
+    Link link = findLinkBySimulatedIP(neighborIp);
+    if (link == null || !adjacent(link)) {
+      return;
     }
-    String[] parts = trimmed.split("\\s+");
-    for (String p : parts) {
-      if (p.matches("\\d+\\.\\d+\\.\\d+\\.\\d+")) {
-        return p;
-      }
+    SOSPFPacket lsaUpdate = new SOSPFPacket();
+    lsaUpdate.lsaArray = new Vector<>(lsd.withCurrentAge(lsas));
+    lsaUpdate.sospfType = 1;
+    lsaUpdate.srcProcessIP = rd.processIPAddress;
+    lsaUpdate.srcProcessPort = rd.processPortNumber;
+    lsaUpdate.srcIP = rd.simulatedIPAddress;
+    lsaUpdate.dstIP = neighborIp;
+
+    sendOnLink(link, lsaUpdate, e -> System.err.println("Failure sending LSA update to " + neighborIp));
+  }
+
+  // Restarts the dead timer of a TWO_WAY neighbor that just sent us something
+  private void heardFrom(String neighborIp) {
+    Link link = findLinkBySimulatedIP(neighborIp);
+    if (link != null && adjacent(link)) {
+      keepalive.heard(link);
     }
-    return null;
   }
 
-  private void floodLsaUpdate(String excludedNeighborIp) {
-    for (Link link : ports) {
-      if (link == null || link.router2.status != RouterStatus.TWO_WAY) {
-        continue;
-      }
-      if (link.router2.simulatedIPAddress == null) {
-        continue;
-      }
-      if (excludedNeighborIp != null
-          && excludedNeighborIp.equals(link.router2.simulatedIPAddress)) {
-        continue;
-      }
+  /**
+   * post a keepalive HELLO to be written from the given executor; Keepalive calls this every hello
+   * interval for each TWO_WAY neighbor. If the previous write to the neighbor has been blocked for longer
+   * than timeoutMs, its connection is closed first.
+   */
+  void sendKeepalive(String neighborIp, Executor executor, long timeoutMs) {
+    Link link = findLinkBySimulatedIP(neighborIp);
+    if (link == null || !adjacent(link)) {
+      return;
+    }
+    if (link.channel.abortStalledWrite(timeoutMs)) {
+      System.err.println("Write to " + neighborIp + " blocked for over " + timeoutMs + " ms; reconnecting");
+    }
+    SOSPFPacket hello = buildHelloPacket(neighborIp);
+    hello.keepalive = true;
+    hello.srcSocketPath = null;
+    // a failed keepalive is not an error by itself; the neighbor's dead timer decides
+    link.channel.post(hello, executor, e -> {
+    });
+  }
 
-      try (Socket socket = new Socket(link.router2.processIPAddress, link.router2.processPortNumber);
-        ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream())) {
-        SOSPFPacket lsaUpdate = new SOSPFPacket();
-        lsaUpdate.lsaArray = new Vector<>(lsd._store.values());
-        lsaUpdate.sospfType = 1;
-        lsaUpdate.srcProcessIP = rd.processIPAddress;
-        lsaUpdate.srcProcessPort = rd.processPortNumber;
-        lsaUpdate.srcIP = rd.simulatedIPAddress;
-        lsaUpdate.dstIP = link.router2.simulatedIPAddress;
-
-        if (lsaUpdate.lsaArray.isEmpty()) {
-          continue;
-        }
+  // Called by Keepalive when a neighbor's dead timer ran out: tear the link down as if it had sent DISCONNECT
+  void neighborDead(Link link, long deadIntervalMs) {
+    String neighborIp = link.router2.simulatedIPAddress;
+    if (neighbors.get(neighborIp) != link) {
+      return;
+    }
+    System.out.println("No HELLO from " + neighborIp + " for " + deadIntervalMs + " ms; declaring it dead");
+    dropNeighbor(neighborIp, "dead interval expiry of " + neighborIp);
+  }
 
-        out.writeObject(lsaUpdate);
-        out.flush();
-      } catch (IOException e) {
-        System.err.println("Failure sending LSA update to " + link.router2.simulatedIPAddress);
-      }
+  // Sends on the calling thread in platform mode. In virtual mode the packet is queued on the link's
+  // channel and written from a virtual thread, in order with everything else posted to that neighbor.
+  private void sendOnLink(Link link, SOSPFPacket packet, Consumer<IOException> onFailure) {
+    NeighborChannel channel = link.channel;
+    if (sendExecutor != null) {
+      channel.post(packet, sendExecutor, onFailure);
+      return;
     }
+    try {
+      channel.send(packet);
+    } catch (IOException e) {
+      onFailure.accept(e);
+    }
+  }
+
+  // Application messages are queued on the link's data channel and written in batches, never on the
+  // caller's thread, so a forwarding router keeps reading while the previous messages go out
+  private void sendData(Link link, SOSPFPacket packet, Consumer<IOException> onFailure) {
+    link.data.post(packet, dataExecutor, onFailure);
   }
 
   private void handleLsaUpdate(SOSPFPacket packet) {
@@ -960,36 +1586,38 @@ public class Router {
       return;
     }
 
+    // requested LSAs count as answered even when another neighbor's copy got here first
+    requestsAnswered(packet.srcIP, packet.lsaArray);
+    List<socs.network.message.LSA> fresh = unseenLsas(packet.lsaArray);
+    if (fresh.isEmpty()) {
+      seenLsas.packetsSuppressed.increment();
+      return;
+    }
+    seenLsas.packetsProcessed.increment();
+
     System.out.println("Received LSAUPDATE from " + packet.srcIP);
 
-    boolean needToFlood = false;
+    boolean selfChanged = false;
     boolean sourceNeighborDroppedUs = false;
     boolean updatedDatabase = false;
-
-    Vector<socs.network.message.LSA> incomingLsaArray = packet.lsaArray;
-    for (socs.network.message.LSA newLsa : incomingLsaArray) {
-      if (newLsa == null || newLsa.linkStateID == null) {
-        continue;
-      }
-
-      socs.network.message.LSA current = lsd._store.get(newLsa.linkStateID);
-
-      if (current == null || newLsa.lsaSeqNumber > current.lsaSeqNumber) {
-        lsd._store.put(newLsa.linkStateID, newLsa);
-        needToFlood = true;
-        updatedDatabase = true;
-
-        if (packet.srcIP.equals(newLsa.linkStateID)
-            && !neighborListsMe(newLsa, rd.simulatedIPAddress)) {
-          sourceNeighborDroppedUs = true;
-        }
+    // LSAs newer than our copy; only these are flooded on. Keeps the copy each one replaced.
+    Map<String, socs.network.message.LSA> replaced = new HashMap<>();
+    List<socs.network.message.LSA> installed = lsd.installNewer(fresh, replaced);
+    int maxAge = lsd.maxAge();
+    for (socs.network.message.LSA lsa : fresh) {
+      seenLsas.record(lsa, maxAge);
+    }
+    for (socs.network.message.LSA newLsa : installed) {
+      updatedDatabase = true;
+      if (packet.srcIP.equals(newLsa.linkStateID) && droppedUs(replaced.get(newLsa.linkStateID), newLsa)) {
+        sourceNeighborDroppedUs = true;
       }
     }
 
     if (sourceNeighborDroppedUs) {
       boolean mirrored = mirrorNeighborDisconnect(packet.srcIP);
       if (mirrored) {
-        needToFlood = true;
+        selfChanged = true;
         updatedDatabase = true;
       }
     }
@@ -998,30 +1626,25 @@ public class Router {
     // If a neighbor's LSA doesn't list us anymore then we'll treat it as a disconnect remove the link
     // Remember rd is our router description and rd.simulatedIPAddress is our router ID which is going to be listed in neighbor's LSA if we're still connected
     // Also a quick update to link weight if the neighbor is still listing us but with a different weight than what we have locally
-    socs.network.message.LSA self = lsd._store.get(rd.simulatedIPAddress);
-
-    if (self == null) {
+    if (lsd.self() == null) {
       // Should never happen, but good check so we don't get nullpointer exceptions in the loop below 
       System.out.println("Self LSA is missing after merging updates, investigate");
       return;
     }
 
-    // For loop to check each neighbor in our ports array and see if they still list us as a neighbor in their LSA. Remove if not
-    for (int i = 0; i < ports.length; i++) {
-      Link currentPort = ports[i];
-      // checking if the current port and neighbor info is valid
-      if (currentPort == null || currentPort.router2 == null || currentPort.router2.simulatedIPAddress == null) {
+    // Check each neighbor whose LSA arrived in this packet and see if it still lists us as a neighbor. Remove if not
+    for (String neighborIP : replaced.keySet()) {
+      Link currentPort = neighbors.get(neighborIP);
+      if (currentPort == null) {
         continue;
       }
       // make sure neighbor is TWO_WAY since we only consider it a disconnect if a TWO_WAY neighbor removes us
-      if (currentPort.router2.status != RouterStatus.TWO_WAY) {
+      if (!adjacent(currentPort)) {
         continue;
       }
 
-      // Get the neighbor's LSA from the lsd using the neighbor's simulated IP as the linkStateID
-      String neighborIP = currentPort.router2.simulatedIPAddress;
       // Moving Lsa == null check here since we would need to actually skip the rest of this loop if the neighbor's LSA is missing
-      socs.network.message.LSA neighborLsa = lsd._store.get(neighborIP);
+      socs.network.message.LSA neighborLsa = lsd.get(neighborIP);
       if (neighborLsa == null || neighborLsa.links == null) {
         continue;
       }
@@ -1037,7 +1660,7 @@ public class Router {
       }
 
       // Neighbor has effectively disconnected if its latest LSA no longer contains a link back to us.
-      boolean neighborRemovedMe = !neighborListsMe(neighborLsa, rd.simulatedIPAddress);
+      boolean neighborRemovedMe = droppedUs(replaced.get(neighborIP), neighborLsa);
       if (!neighborRemovedMe) {
         // Neighbor still lists us so skip this link
         continue;
@@ -1045,18 +1668,11 @@ public class Router {
 
       // Mirror the disconnect locally by dropping the port.
       System.out.println(neighborIP + " removed us so we're going to remove them too");
-      // Actual removal of the link from our ports array
-      ports[i] = null;
+      // Actual removal of the link from our neighbor table
+      releasePort(currentPort.portNum);
       // Remove the neighbor from our local LSA links as well since we're treating this as a disconnect. iterating to find matching neighbor IP and remove it from list of links in our LSA
-      for (int j = 0; j < self.links.size(); j++) {
-        socs.network.message.LinkDescription givenLink = self.links.get(j);
-        if (neighborIP.equals(givenLink.linkID)) {
-          self.links.remove(j);
-          j--; // stay at same index after removal
-        }
-      }
-      self.lsaSeqNumber++;
-      needToFlood = true;
+      lsd.editSelfLsa(links -> links.removeIf(givenLink -> neighborIP.equals(givenLink.linkID)));
+      selfChanged = true;
       updatedDatabase = true;
     }
 
@@ -1064,12 +1680,35 @@ public class Router {
       System.out.println("Updating link state database");
     }
 
-    // If any LSAs were updated, flood the updates to all TWO_WAY neighbors
-    if (needToFlood) {
-      floodLsaUpdate(packet.srcIP);
+    // Pass on what was new to us to everyone but the sender; a re-originated self LSA goes to all neighbors
+    floodLsaUpdate(installed, packet.srcIP);
+    if (selfChanged) {
+      floodSelfLsa();
     }
   }
 
+  // Drops the LSAs of the update that this router already processed, counting both kinds
+  private List<socs.network.message.LSA> unseenLsas(List<socs.network.message.LSA> lsas) {
+    int maxAge = lsd.maxAge();
+    List<socs.network.message.LSA> fresh = new ArrayList<>(lsas.size());
+    for (socs.network.message.LSA lsa : lsas) {
+      if (!seenLsas.seen(lsa, maxAge)) {
+        fresh.add(lsa);
+      }
+    }
+    seenLsas.lsasProcessed.add(fresh.size());
+    seenLsas.lsasSuppressed.add(lsas.size() - fresh.size());
+    return fresh;
+  }
+
+  // A neighbor dropped us only if the copy it replaced still listed us. Copies from before the adjacency
+  // came up (still arriving via other routers) never listed us and must not tear it down again.
+  private boolean droppedUs(socs.network.message.LSA previous, socs.network.message.LSA latest) {
+    return previous != null && previous.links != null
+        && neighborListsMe(previous, rd.simulatedIPAddress)
+        && !neighborListsMe(latest, rd.simulatedIPAddress);
+  }
+
   private boolean neighborListsMe(socs.network.message.LSA neighborLsa, String selfIp) {
     if (selfIp == null) {
       return false;
@@ -1089,66 +1728,34 @@ public class Router {
     }
 
     Link link = findLinkBySimulatedIP(neighborIP);
-    if (link == null || link.router2 == null || link.router2.status != RouterStatus.TWO_WAY) {
+    if (link == null || link.router2 == null || !adjacent(link)) {
       return false;
     }
 
-    socs.network.message.LSA self = lsd._store.get(rd.simulatedIPAddress);
-    if (self == null) {
+    if (lsd.self() == null) {
       return false;
     }
 
     System.out.println(neighborIP + " removed us so we're going to remove them too");
 
-    for (int i = 0; i < ports.length; i++) {
-      Link p = ports[i];
-      if (p != null && p.router2 != null && neighborIP.equals(p.router2.simulatedIPAddress)) {
-        ports[i] = null;
-        break;
-      }
-    }
-
-    boolean removedFromSelfLsa = false;
-    for (int i = 0; i < self.links.size(); i++) {
-      socs.network.message.LinkDescription ld = self.links.get(i);
-      if (neighborIP.equals(ld.linkID)) {
-        self.links.remove(i);
-        i--;
-        removedFromSelfLsa = true;
-      }
-    }
+    releasePort(link.portNum);
 
-    if (removedFromSelfLsa) {
-      self.lsaSeqNumber++;
-    }
-    return removedFromSelfLsa;
+    return lsd.editSelfLsa(links -> links.removeIf(ld -> neighborIP.equals(ld.linkID)));
   }
 
   private boolean removeNeighborFromSelfLsa(String neighborIp, int portNumber) {
-    socs.network.message.LSA self = lsd._store.get(rd.simulatedIPAddress);
-    if (self == null) {
+    if (lsd.self() == null) {
       return false;
     }
 
-    boolean removed = false;
-    for (int i = 0; i < self.links.size(); i++) {
-      socs.network.message.LinkDescription ld = self.links.get(i);
+    return lsd.editSelfLsa(links -> links.removeIf(ld -> {
       if (ld == null) {
-        continue;
+        return false;
       }
       boolean sameNeighbor = neighborIp != null && neighborIp.equals(ld.linkID);
       boolean samePort = portNumber >= 0 && ld.portNum == portNumber;
-      if (sameNeighbor || samePort) {
-        self.links.remove(i);
-        i--;
-        removed = true;
-      }
-    }
-
-    if (removed) {
-      self.lsaSeqNumber++;
-    }
-    return removed;
+      return sameNeighbor || samePort;
+    }));
   }
 
   private void sendDisconnectNotification(Link link) {
@@ -1156,16 +1763,14 @@ public class Router {
       return;
     }
 
-    try (Socket socket = new Socket(link.router2.processIPAddress, link.router2.processPortNumber);
-         ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream())) {
+    try {
       SOSPFPacket disconnect = new SOSPFPacket();
       disconnect.sospfType = 2;
       disconnect.srcProcessIP = rd.processIPAddress;
       disconnect.srcProcessPort = rd.processPortNumber;
       disconnect.srcIP = rd.simulatedIPAddress;
       disconnect.dstIP = link.router2.simulatedIPAddress;
-      out.writeObject(disconnect);
-      out.flush();
+      link.channel.send(disconnect);
       System.out.println("Sent DISCONNECT to " + link.router2.simulatedIPAddress);
     } catch (IOException e) {
       System.err.println("Failed to notify " + link.router2.simulatedIPAddress + " about disconnect");
@@ -1177,16 +1782,14 @@ public class Router {
       return;
     }
 
-    try (Socket socket = new Socket(packet.srcProcessIP, packet.srcProcessPort);
-         ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream())) {
+    try (PacketConnection out = PacketConnection.open(packet.srcProcessIP, packet.srcProcessPort, wireFormat)) {
       SOSPFPacket mirror = new SOSPFPacket();
       mirror.sospfType = 2;
       mirror.srcProcessIP = rd.processIPAddress;
       mirror.srcProcessPort = rd.processPortNumber;
       mirror.srcIP = rd.simulatedIPAddress;
       mirror.dstIP = packet.srcIP;
-      out.writeObject(mirror);
-      out.flush();
+      out.write(mirror);
       System.out.println("Mirrored DISCONNECT back to " + packet.srcIP);
     } catch (IOException e) {
       System.err.println("Failed to mirror disconnect back to " + packet.srcIP);
@@ -1200,27 +1803,28 @@ public class Router {
 
     String neighborIp = packet.srcIP;
     System.out.println("Received DISCONNECT from " + neighborIp);
+    dropNeighbor(neighborIp, "DISCONNECT from " + neighborIp);
+  }
+
+  // Releases the neighbor's port and removes it from the self LSA, which is then re-originated
+  private void dropNeighbor(String neighborIp, String event) {
     boolean removedPort = false;
     int removedPortNumber = -1;
 
-    for (int i = 0; i < ports.length; i++) {
-      Link existing = ports[i];
-      if (existing != null && existing.router2 != null
-          && neighborIp.equals(existing.router2.simulatedIPAddress)) {
-        ports[i] = null;
-        removedPort = true;
-        removedPortNumber = i;
-        break;
-      }
+    Link existing = neighbors.get(neighborIp);
+    if (existing != null) {
+      releasePort(existing.portNum);
+      removedPort = true;
+      removedPortNumber = existing.portNum;
     }
 
     boolean removedFromLsa = removeNeighborFromSelfLsa(neighborIp, removedPortNumber);
     if (removedPort || removedFromLsa) {
-      floodLsaUpdate(neighborIp);
-      System.out.println("Applied DISCONNECT from " + neighborIp + " (removedPort=" + removedPort
+      floodSelfLsa();
+      System.out.println("Applied " + event + " (removedPort=" + removedPort
           + ", removedFromLsa=" + removedFromLsa + ")");
     } else {
-      System.out.println("DISCONNECT from " + neighborIp + " was already applied locally");
+      System.out.println(event + " was already applied locally");
     }
   }
 
@@ -4,6 +4,9 @@ public class RouterDescription {
   //used to socket communication
   String processIPAddress;
   short processPortNumber;
+  //Unix domain socket to use instead of TCP; for this router the one it listens on, for a neighbor the
+  //one it advertised, kept only when both routers have one and run on the same host
+  String socketPath;
   //used to identify the router in the simulated network space
   String simulatedIPAddress;
   //status of the router
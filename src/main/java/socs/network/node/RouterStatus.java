@@ -4,8 +4,19 @@ package socs.network.node;
  * status of the router, in this simplified version of routing protocol, we only define INIT and
  * TWO_WAY for database synchronization, you can choose to keep other status by adding more fields
  * in router class or you can add more options here
+ * <p/>
+ * After TWO_WAY the databases are synchronized OSPF style: EXCHANGE while waiting for the neighbor's
+ * database summary, LOADING while LSAs requested from it are outstanding, FULL once both agree.
+ * Every state from TWO_WAY on counts as an adjacency (listed in the self LSA, included in floods).
  */
 public enum RouterStatus {
   INIT,
   TWO_WAY,
+  EXCHANGE,
+  LOADING,
+  FULL;
+
+  boolean adjacent() {
+    return compareTo(TWO_WAY) >= 0;
+  }
 }
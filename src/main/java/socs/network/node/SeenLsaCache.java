@@ -0,0 +1,72 @@
+package socs.network.node;
+
+import socs.network.message.LSA;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The LSA instances this router has already processed, so that the copies of one flood arriving from
+ * every other neighbor are dropped before they reach the database or the port checks.
+ * <p/>
+ * An instance is identified by (linkStateID, sequence number) and whether it is a MaxAge flush; the
+ * database orders instances by sequence number alone, so that is all it would tell apart either. Both
+ * are plain fields of the LSA, so checking a copy costs no pass over its links. The table is
+ * direct-mapped on linkStateID and keeps only the latest instance seen per slot, which is all flooding
+ * needs since an originator's sequence numbers only grow. Two routers sharing a slot evict each other,
+ * which only costs a lookup miss: a miss means the LSA is processed normally, so the cache never makes
+ * the router skip something new. Lock free; any connection thread may check or record.
+ */
+class SeenLsaCache {
+
+  static final int DEFAULT_SLOTS = 4096;
+
+  private static final class Instance {
+    final String linkStateID;
+    // sequence number and flush flag packed together
+    final long key;
+
+    Instance(String linkStateID, long key) {
+      this.linkStateID = linkStateID;
+      this.key = key;
+    }
+  }
+
+  private final AtomicReferenceArray<Instance> slots;
+  private final int mask;
+
+  // shown by the counters command
+  final LongAdder packetsProcessed = new LongAdder();
+  final LongAdder packetsSuppressed = new LongAdder();
+  final LongAdder lsasProcessed = new LongAdder();
+  final LongAdder lsasSuppressed = new LongAdder();
+
+  SeenLsaCache(int slotCount) {
+    int size = Integer.highestOneBit(Math.max(2, slotCount - 1)) << 1;
+    this.slots = new AtomicReferenceArray<>(size);
+    this.mask = size - 1;
+  }
+
+  boolean seen(LSA lsa, int maxAge) {
+    if (lsa.linkStateID == null) {
+      return false;
+    }
+    Instance seen = slots.get(slot(lsa.linkStateID));
+    return seen != null && seen.key == key(lsa, maxAge) && seen.linkStateID.equals(lsa.linkStateID);
+  }
+
+  void record(LSA lsa, int maxAge) {
+    if (lsa.linkStateID != null) {
+      slots.set(slot(lsa.linkStateID), new Instance(lsa.linkStateID, key(lsa, maxAge)));
+    }
+  }
+
+  private int slot(String linkStateID) {
+    int h = linkStateID.hashCode() * 0x9e3779b9;
+    return (h ^ (h >>> 16)) & mask;
+  }
+
+  private static long key(LSA lsa, int maxAge) {
+    return ((long) lsa.lsaSeqNumber << 1) | (lsa.lsaAge >= maxAge ? 1 : 0);
+  }
+}
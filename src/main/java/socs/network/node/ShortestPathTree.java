@@ -0,0 +1,145 @@
+package socs.network.node;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable copy of this router's shortest path tree at one version of the link state database.
+ * <p/>
+ * Holds the distance and parent of every reachable router plus every neighbor that starts a shortest
+ * path to it, so detect and forwarding are answered from the same tree without another route computation.
+ * The parent chain is one of those paths; the first hops cover every equal-cost path.
+ * <p/>
+ * Per-router state is kept by graph index in pages of PAGE routers. IncrementalShortestPath publishes a
+ * new tree by copying only the pages a repair touched; every other page is shared with the previous
+ * tree, so publishing costs the size of the repair rather than the size of the network.
+ */
+class ShortestPathTree {
+
+  static final int PAGE_BITS = 6;
+  static final int PAGE = 1 << PAGE_BITS;
+
+  final String sourceIP;
+  // LinkStateDatabase version at which the tree last changed
+  final long version;
+
+  private final int source;
+  // routers known to the graph when the tree was published; larger indices are newer than the tree
+  private final int size;
+  // the graph's interned ids and its id => index map; entries below size never change
+  private final String[] ids;
+  private final Map<String, Integer> index;
+  private final int[][] distancePages;
+  private final int[][] parentPages;
+  // first routers after the source on the equal-cost shortest paths, as graph indices in ascending order
+  private final int[][][] hopPages;
+
+  ShortestPathTree(String sourceIP, long version, int source, int size, String[] ids, Map<String, Integer> index,
+                   int[][] distancePages, int[][] parentPages, int[][][] hopPages) {
+    this.sourceIP = sourceIP;
+    this.version = version;
+    this.source = source;
+    this.size = size;
+    this.ids = ids;
+    this.index = index;
+    this.distancePages = distancePages;
+    this.parentPages = parentPages;
+    this.hopPages = hopPages;
+  }
+
+  // Number of router indices in the tree; reachable or not
+  int size() {
+    return size;
+  }
+
+  String id(int node) {
+    return ids[node];
+  }
+
+  int distance(int node) {
+    return distancePages[node >>> PAGE_BITS][node & (PAGE - 1)];
+  }
+
+  int parent(int node) {
+    return parentPages[node >>> PAGE_BITS][node & (PAGE - 1)];
+  }
+
+  /**
+   * @return the first hops towards the node as ascending graph indices; null if it is unreachable.
+   * Nodes with the same hops usually share one array.
+   */
+  int[] hops(int node) {
+    return hopPages[node >>> PAGE_BITS][node & (PAGE - 1)];
+  }
+
+  // Returns -1 if the router is unknown to this tree
+  int indexOf(String id) {
+    Integer i = id == null ? null : index.get(id);
+    return i == null || i >= size ? -1 : i;
+  }
+
+  boolean reaches(String destinationIP) {
+    int node = indexOf(destinationIP);
+    return node >= 0 && distance(node) != IncrementalShortestPath.UNREACHABLE;
+  }
+
+  /**
+   * @return the distance to the destination, or IncrementalShortestPath.UNREACHABLE
+   */
+  int distance(String destinationIP) {
+    int node = indexOf(destinationIP);
+    return node < 0 ? IncrementalShortestPath.UNREACHABLE : distance(node);
+  }
+
+  /**
+   * @return every reachable router except the source
+   */
+  List<String> destinations() {
+    List<String> reachable = new ArrayList<>();
+    for (int v = 0; v < size; v++) {
+      if (v != source && distance(v) != IncrementalShortestPath.UNREACHABLE) {
+        reachable.add(ids[v]);
+      }
+    }
+    return reachable;
+  }
+
+  /**
+   * @return the routers on the path from the source to the destination (both included), or null if unreachable
+   */
+  List<String> pathTo(String destinationIP) {
+    if (destinationIP == null || !reaches(destinationIP)) {
+      return null;
+    }
+    if (sourceIP.equals(destinationIP)) {
+      return Collections.singletonList(sourceIP);
+    }
+    LinkedList<String> path = new LinkedList<>();
+    for (int node = indexOf(destinationIP); node >= 0; node = parent(node)) {
+      path.addFirst(ids[node]);
+    }
+    return new ArrayList<>(path);
+  }
+
+  /**
+   * @return the equal-cost first hops towards the destination sorted by IP, empty if it is unreachable
+   * or the source
+   */
+  List<String> nextHops(String destinationIP) {
+    int node = indexOf(destinationIP);
+    int[] hops = node < 0 ? null : hops(node);
+    if (hops == null || hops.length == 0) {
+      return Collections.emptyList();
+    }
+    String[] names = new String[hops.length];
+    for (int i = 0; i < hops.length; i++) {
+      names[i] = ids[hops[i]];
+    }
+    Arrays.sort(names);
+    return Arrays.asList(names);
+  }
+}
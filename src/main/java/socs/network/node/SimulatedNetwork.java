@@ -0,0 +1,233 @@
+package socs.network.node;
+
+import socs.network.message.SOSPFCodec;
+import socs.network.message.SOSPFPacket;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * In-process replacement for the TCP listeners of many routers in one JVM, used by Simulation.
+ * <p/>
+ * Each router gets an Endpoint as its NetworkLayer, registered under its process IP and port. dial()
+ * returns a connection whose packets are encoded with SOSPFCodec and decoded again on delivery, so every
+ * router works on its own copies exactly as over TCP, and bytes on the wire can be counted per packet
+ * type. Delivery runs on a shared worker pool instead of a thread per connection; packets of one
+ * connection are handled in order, one at a time. Replies (HELLO, CONNECT) go back to the dialing
+ * side's read().
+ * <p/>
+ * HELLO and CONNECT are only sent by NeighborChannel.exchange(), which holds the channel until the
+ * reply is read. They are handled on the sending thread, after whatever the connection still had
+ * queued, so the reply never waits behind the delivery backlog of the whole network.
+ */
+class SimulatedNetwork {
+
+  // sospfType -1 (reject) to 6 (LS request)
+  static final int MIN_TYPE = -1;
+  static final int MAX_TYPE = 6;
+  // a reply that takes longer means the neighbor is stuck; TCP would block forever
+  static final long REPLY_TIMEOUT_MS = 10_000;
+
+  private final Map<String, Endpoint> endpoints = new ConcurrentHashMap<>();
+  private final ExecutorService delivery;
+  private final LongAdder[] packets = new LongAdder[MAX_TYPE - MIN_TYPE + 1];
+  private final LongAdder[] bytes = new LongAdder[MAX_TYPE - MIN_TYPE + 1];
+  // packets sent and not yet handled, and when the last one was sent
+  private final AtomicLong inFlight = new AtomicLong();
+  private volatile long lastSendNanos = System.nanoTime();
+
+  SimulatedNetwork(int deliveryThreads) {
+    delivery = ExecutionMode.PLATFORM.newWorkerExecutor(Math.max(1, deliveryThreads), "sim-delivery");
+    for (int i = 0; i < packets.length; i++) {
+      packets[i] = new LongAdder();
+      bytes[i] = new LongAdder();
+    }
+  }
+
+  /**
+   * the NetworkLayer factory to hand to the Router constructor
+   */
+  NetworkLayer layerFor(Router router) {
+    return new Endpoint(router);
+  }
+
+  long packets(int sospfType) {
+    return packets[sospfType - MIN_TYPE].sum();
+  }
+
+  long bytes(int sospfType) {
+    return bytes[sospfType - MIN_TYPE].sum();
+  }
+
+  /**
+   * true if nothing is waiting to be handled and nothing was sent in the last quietMs
+   */
+  boolean idle(long quietMs) {
+    return inFlight.get() == 0 && System.nanoTime() - lastSendNanos >= TimeUnit.MILLISECONDS.toNanos(quietMs);
+  }
+
+  void shutdown() {
+    delivery.shutdownNow();
+  }
+
+  private static String address(String processIP, int port) {
+    return processIP + ":" + port;
+  }
+
+  // Encodes the packet as one binary frame would carry it and counts it
+  private byte[] encode(SOSPFPacket packet) throws IOException {
+    byte[] body = SOSPFCodec.encode(packet);
+    int type = Math.max(MIN_TYPE, Math.min(MAX_TYPE, packet.sospfType));
+    packets[type - MIN_TYPE].increment();
+    bytes[type - MIN_TYPE].add(4 + body.length);
+    return body;
+  }
+
+  class Endpoint extends NetworkLayer {
+    private final Router router;
+    private volatile boolean running;
+
+    Endpoint(Router router) {
+      super(router, ExecutionMode.PLATFORM);
+      this.router = router;
+    }
+
+    @Override
+    void start() throws IOException {
+      int port = router.getProcessPort();
+      if (endpoints.putIfAbsent(address(router.rd.processIPAddress, port), this) != null) {
+        throw new IOException("Address already in use: " + address(router.rd.processIPAddress, port));
+      }
+      running = true;
+    }
+
+    @Override
+    void stop() {
+      running = false;
+      endpoints.remove(address(router.rd.processIPAddress, router.getProcessPort()), this);
+    }
+
+    @Override
+    Connection dial(RouterDescription remote, WireFormat format) throws IOException {
+      Endpoint peer = endpoints.get(address(remote.processIPAddress, remote.processPortNumber));
+      if (peer == null) {
+        throw new ConnectException("Connection refused: " + address(remote.processIPAddress, remote.processPortNumber));
+      }
+      return new SimulatedConnection(peer);
+    }
+  }
+
+  // The dialing side of a connection; the accepting side is its inbox and reply sink
+  private class SimulatedConnection implements Connection {
+    private final Endpoint peer;
+    private final BlockingQueue<SOSPFPacket> replies = new LinkedBlockingQueue<>();
+    private final ConcurrentLinkedQueue<byte[]> inbox = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean draining = new AtomicBoolean();
+    // held while handling a packet, so the pool and an exchanging sender never handle two at once
+    private final Object handling = new Object();
+    private final PacketSink replySink = packet -> {
+      byte[] body = encode(packet);
+      replies.add(SOSPFCodec.decode(body, 0, body.length));
+    };
+    private volatile boolean closed;
+
+    SimulatedConnection(Endpoint peer) {
+      this.peer = peer;
+    }
+
+    @Override
+    public void write(SOSPFPacket packet) throws IOException {
+      writeBuffered(packet);
+    }
+
+    @Override
+    public void writeBuffered(SOSPFPacket packet) throws IOException {
+      if (closed) {
+        throw new IOException("Socket closed");
+      }
+      if (!peer.running) {
+        closed = true;
+        throw new IOException("Connection reset");
+      }
+      inbox.add(encode(packet));
+      inFlight.incrementAndGet();
+      lastSendNanos = System.nanoTime();
+      if (packet.sospfType == 3 || (packet.sospfType == 0 && !packet.keepalive)) {
+        while (handleNext()) {
+        }
+        return;
+      }
+      if (draining.compareAndSet(false, true)) {
+        delivery.execute(this::drain);
+      }
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public SOSPFPacket read() throws IOException {
+      try {
+        SOSPFPacket reply = replies.poll(REPLY_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        if (reply == null) {
+          throw new IOException("No reply within " + REPLY_TIMEOUT_MS + " ms");
+        }
+        return reply;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted waiting for a reply");
+      }
+    }
+
+    @Override
+    public boolean isClosed() {
+      return closed;
+    }
+
+    @Override
+    public void close() {
+      closed = true;
+    }
+
+    // Same single-drainer scheme as NeighborChannel.post: one task at a time, resubmitted if more arrived
+    private void drain() {
+      while (handleNext()) {
+      }
+      draining.set(false);
+      if (!inbox.isEmpty() && draining.compareAndSet(false, true)) {
+        delivery.execute(this::drain);
+      }
+    }
+
+    // Returns false once the inbox is empty
+    private boolean handleNext() {
+      synchronized (handling) {
+        byte[] body = inbox.poll();
+        if (body == null) {
+          return false;
+        }
+        try {
+          if (peer.running) {
+            peer.router.handlePacket(SOSPFCodec.decode(body, 0, body.length), replySink);
+          }
+        } catch (IOException | RuntimeException e) {
+          System.err.println("Error handling request: " + e);
+        } finally {
+          inFlight.decrementAndGet();
+        }
+        return true;
+      }
+    }
+  }
+}
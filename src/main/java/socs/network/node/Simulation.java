@@ -0,0 +1,413 @@
+package socs.network.node;
+
+import socs.network.message.LSA;
+import socs.network.message.LinkDescription;
+import socs.network.util.Configuration;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a whole generated Topology of routers in one JVM over a SimulatedNetwork, driving them through
+ * the same attach, start, update and disconnect commands a user would type, and measures how long the
+ * link state databases take to agree and how much flooding that took.
+ * <p/>
+ * Phases:
+ * - start: every router attaches to its higher-numbered neighbors, then each runs start in turn
+ * - update: random links get a new weight, set on one end
+ * - disconnect: random links are disconnected, never one that would split the network
+ * <p/>
+ * A phase has converged once every router's own LSA lists exactly its current links and every router
+ * holds that same instance (sequence number and checksum) of every router's LSA, with the network idle.
+ * Its time runs from the first command to the last database change any router made. Starts run one
+ * after another because a HELLO exchange holds the link's channel until the reply arrives.
+ * <p/>
+ * Router output goes nowhere unless --verbose. Keepalives are off unless --helloInterval is given, since
+ * with thousands of routers the HELLOs would dominate the counts.
+ * <p/>
+ * usage: Simulation [--topology ring|grid|random|scalefree] [--routers n] [--seed s] [--changes k]
+ * [--floodDelay ms] [--minLsInterval ms] [--helloInterval ms] [--timeout s] [--verbose]
+ */
+public class Simulation {
+
+  static final String PROCESS_IP = "127.0.0.1";
+  private static final long POLL_MS = 10;
+  private static final String[] TYPE_NAMES = {"reject", "HELLO", "LSAUPDATE", "DISCONNECT", "CONNECT",
+      "message", "DBD", "LSR"};
+
+  /**
+   * what one phase took; packets and bytes are indexed by sospfType - SimulatedNetwork.MIN_TYPE
+   */
+  static final class Phase {
+    final String name;
+    final boolean converged;
+    final double millis;
+    final long[] packets;
+    final long[] bytes;
+
+    Phase(String name, boolean converged, double millis, long[] packets, long[] bytes) {
+      this.name = name;
+      this.converged = converged;
+      this.millis = millis;
+      this.packets = packets;
+      this.bytes = bytes;
+    }
+
+    @Override
+    public String toString() {
+      StringBuilder sb = new StringBuilder(String.format("%-10s ", name));
+      sb.append(converged ? String.format("converged in %9.1f ms", millis)
+          : String.format("NOT converged after %.0f ms", millis));
+      long totalPackets = 0;
+      long totalBytes = 0;
+      for (int i = 0; i < packets.length; i++) {
+        totalPackets += packets[i];
+        totalBytes += bytes[i];
+        if (packets[i] > 0) {
+          sb.append(String.format("  %s %d (%s)", TYPE_NAMES[i], packets[i], size(bytes[i])));
+        }
+      }
+      sb.append(String.format("  total %d (%s)", totalPackets, size(totalBytes)));
+      return sb.toString();
+    }
+  }
+
+  private final Topology topology;
+  private final SimulatedNetwork network;
+  private final Router[] routers;
+  private final long quietMs;
+  private final long timeoutMs;
+  // router index => neighbor index => weight, as the commands issued so far left the links
+  private final List<Map<Integer, Integer>> expected = new ArrayList<>();
+
+  /**
+   * @param settings router settings applied to every router (floodDelay, minLsInterval, helloInterval,
+   *                 without the socs.network.router prefix)
+   */
+  Simulation(Topology topology, Map<String, String> settings, long timeoutMs) {
+    if (topology.routers > Short.MAX_VALUE) {
+      throw new IllegalArgumentException("at most " + Short.MAX_VALUE + " routers, one process port each");
+    }
+    this.topology = topology;
+    this.timeoutMs = timeoutMs;
+    int maxDegree = 1;
+    int[] degree = new int[topology.routers];
+    for (int i = 0; i < topology.links(); i++) {
+      maxDegree = Math.max(maxDegree, Math.max(++degree[topology.from[i]], ++degree[topology.to[i]]));
+    }
+    network = new SimulatedNetwork(Runtime.getRuntime().availableProcessors());
+    long floodDelay = settings.containsKey("floodDelay")
+        ? Long.parseLong(settings.get("floodDelay")) : FloodScheduler.DEFAULT_FLOOD_DELAY_MS;
+    quietMs = Math.max(50, 5 * floodDelay);
+
+    routers = new Router[topology.routers];
+    for (int r = 0; r < routers.length; r++) {
+      Configuration config = new Configuration();
+      config.addEntry("socs.network.router.ip", Topology.ip(r));
+      config.addEntry("socs.network.router.processIP", PROCESS_IP);
+      config.addEntry("socs.network.router.port", String.valueOf(port(r)));
+      config.addEntry("socs.network.router.maxNeighbors", String.valueOf(maxDegree));
+      config.addEntry("socs.network.router.attachRequests", "accept");
+      config.addEntry("socs.network.router.helloInterval", "0");
+      for (Map.Entry<String, String> setting : settings.entrySet()) {
+        config.addEntry("socs.network.router." + setting.getKey(), setting.getValue());
+      }
+      routers[r] = new Router(config, network::layerFor);
+      expected.add(new HashMap<>());
+    }
+  }
+
+  private static short port(int router) {
+    return (short) (router + 1);
+  }
+
+  /**
+   * attach every link of the topology from its lower-numbered end, then start every router
+   */
+  Phase start() {
+    long begin = System.nanoTime();
+    long[][] before = counters();
+    for (int i = 0; i < topology.links(); i++) {
+      int a = Math.min(topology.from[i], topology.to[i]);
+      int b = Math.max(topology.from[i], topology.to[i]);
+      routers[a].processAttach(PROCESS_IP, port(b), Topology.ip(b), (short) topology.weight[i]);
+      expected.get(a).put(b, topology.weight[i]);
+      expected.get(b).put(a, topology.weight[i]);
+    }
+    for (Router router : routers) {
+      router.processStart();
+    }
+    return awaitConvergence("start", begin, before);
+  }
+
+  /**
+   * give count random links a new weight. No two of them share a router: a router that re-originates
+   * for one change before it hears of a change to another of its links would advertise that link's old
+   * weight, and the other end adopts the weight its neighbor advertises.
+   */
+  Phase update(int count, Random random) {
+    List<int[]> links = currentLinks();
+    boolean[] changed = new boolean[routers.length];
+    long begin = System.nanoTime();
+    long[][] before = counters();
+    int done = 0;
+    while (done < count && !links.isEmpty()) {
+      int[] link = links.remove(random.nextInt(links.size()));
+      if (changed[link[0]] || changed[link[1]]) {
+        continue;
+      }
+      changed[link[0]] = true;
+      changed[link[1]] = true;
+      done++;
+      int weight = link[2] % Topology.MAX_WEIGHT + 1;
+      routers[link[0]].processUpdate((short) portOf(link[0], link[1]), (short) weight);
+      expected.get(link[0]).put(link[1], weight);
+      expected.get(link[1]).put(link[0], weight);
+    }
+    return awaitConvergence("update", begin, before);
+  }
+
+  /**
+   * disconnect count random links, skipping any whose removal would split the network
+   */
+  Phase disconnect(int count, Random random) {
+    List<int[]> links = currentLinks();
+    long begin = System.nanoTime();
+    long[][] before = counters();
+    int done = 0;
+    while (done < count && !links.isEmpty()) {
+      int[] link = links.remove(random.nextInt(links.size()));
+      expected.get(link[0]).remove(link[1]);
+      expected.get(link[1]).remove(link[0]);
+      if (!connected()) {
+        expected.get(link[0]).put(link[1], link[2]);
+        expected.get(link[1]).put(link[0], link[2]);
+        continue;
+      }
+      routers[link[0]].processDisconnect(portOf(link[0], link[1]));
+      done++;
+    }
+    return awaitConvergence("disconnect", begin, before);
+  }
+
+  void shutdown() {
+    for (Router router : routers) {
+      router.shutdown();
+    }
+    network.shutdown();
+  }
+
+  // Returns {a, b, weight} for every expected link, a < b
+  private List<int[]> currentLinks() {
+    List<int[]> links = new ArrayList<>();
+    for (int a = 0; a < routers.length; a++) {
+      for (Map.Entry<Integer, Integer> neighbor : expected.get(a).entrySet()) {
+        if (a < neighbor.getKey()) {
+          links.add(new int[]{a, neighbor.getKey(), neighbor.getValue()});
+        }
+      }
+    }
+    return links;
+  }
+
+  private int portOf(int router, int neighbor) {
+    return routers[router].neighbors.get(Topology.ip(neighbor)).portNum;
+  }
+
+  private boolean connected() {
+    boolean[] reached = new boolean[routers.length];
+    ArrayDeque<Integer> queue = new ArrayDeque<>();
+    queue.add(0);
+    reached[0] = true;
+    int count = 1;
+    while (!queue.isEmpty()) {
+      for (int next : expected.get(queue.poll()).keySet()) {
+        if (!reached[next]) {
+          reached[next] = true;
+          count++;
+          queue.add(next);
+        }
+      }
+    }
+    return count == routers.length;
+  }
+
+  private long[][] counters() {
+    int types = SimulatedNetwork.MAX_TYPE - SimulatedNetwork.MIN_TYPE + 1;
+    long[][] counters = new long[2][types];
+    for (int i = 0; i < types; i++) {
+      counters[0][i] = network.packets(i + SimulatedNetwork.MIN_TYPE);
+      counters[1][i] = network.bytes(i + SimulatedNetwork.MIN_TYPE);
+    }
+    return counters;
+  }
+
+  private Phase awaitConvergence(String name, long begin, long[][] before) {
+    long deadline = begin + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+    boolean converged = false;
+    while (System.nanoTime() < deadline) {
+      if (network.idle(quietMs) && converged()) {
+        converged = true;
+        break;
+      }
+      try {
+        Thread.sleep(POLL_MS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        break;
+      }
+    }
+    long end = System.nanoTime();
+    if (converged) {
+      end = begin;
+      for (Router router : routers) {
+        end = Math.max(end, router.lsd.snapshot().publishedNanos);
+      }
+    }
+    long[][] after = counters();
+    for (int i = 0; i < after[0].length; i++) {
+      after[0][i] -= before[0][i];
+      after[1][i] -= before[1][i];
+    }
+    return new Phase(name, converged, (end - begin) / 1e6, after[0], after[1]);
+  }
+
+  // Every router advertises exactly its expected links, and every database holds those same instances
+  boolean converged() {
+    int n = routers.length;
+    int[] seqNumbers = new int[n];
+    int[] checksums = new int[n];
+    for (int r = 0; r < n; r++) {
+      LSA self = routers[r].lsd.self();
+      Map<Integer, Integer> links = expected.get(r);
+      int advertised = 0;
+      for (LinkDescription ld : self.links) {
+        if (ld.linkID.equals(self.linkStateID)) {
+          continue;
+        }
+        Integer weight = links.get(indexOf(ld.linkID));
+        if (weight == null || weight != ld.weight) {
+          return false;
+        }
+        advertised++;
+      }
+      if (advertised != links.size()) {
+        return false;
+      }
+      seqNumbers[r] = self.lsaSeqNumber;
+      checksums[r] = self.checksum();
+    }
+    for (int q = 0; q < n; q++) {
+      Map<String, LSA> store = routers[q].lsd.snapshot().store;
+      if (store.size() != n) {
+        return false;
+      }
+      for (int r = 0; r < n; r++) {
+        LSA copy = store.get(Topology.ip(r));
+        if (copy == null || copy.lsaSeqNumber != seqNumbers[r] || (q != r && copy.checksum() != checksums[r])) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  // inverse of Topology.ip
+  private static int indexOf(String ip) {
+    String[] octets = ip.split("\\.");
+    if (octets.length != 4) {
+      return -1;
+    }
+    return Integer.parseInt(octets[1]) << 16 | Integer.parseInt(octets[2]) << 8 | Integer.parseInt(octets[3]);
+  }
+
+  private static String size(long bytes) {
+    if (bytes < 10 * 1024) {
+      return bytes + " B";
+    }
+    if (bytes < 10 * 1024 * 1024) {
+      return (bytes / 1024) + " KB";
+    }
+    return String.format("%.1f MB", bytes / (1024.0 * 1024.0));
+  }
+
+  public static void main(String[] args) throws Exception {
+    String kind = "grid";
+    int count = 100;
+    long seed = 42;
+    int changes = 10;
+    long timeoutMs = 120_000;
+    boolean verbose = false;
+    Map<String, String> settings = new HashMap<>();
+    for (int i = 0; i < args.length; i++) {
+      String option = args[i];
+      if (option.equals("--verbose")) {
+        verbose = true;
+        continue;
+      }
+      if (i + 1 >= args.length) {
+        System.err.println("Missing value for " + option);
+        System.exit(1);
+      }
+      String value = args[++i];
+      switch (option) {
+        case "--topology":
+          kind = value;
+          break;
+        case "--routers":
+          count = Integer.parseInt(value);
+          break;
+        case "--seed":
+          seed = Long.parseLong(value);
+          break;
+        case "--changes":
+          changes = Integer.parseInt(value);
+          break;
+        case "--timeout":
+          timeoutMs = Long.parseLong(value) * 1000;
+          break;
+        case "--floodDelay":
+        case "--minLsInterval":
+        case "--helloInterval":
+          settings.put(option.substring(2), value);
+          break;
+        default:
+          System.err.println("Unknown option " + option);
+          System.err.println("usage: Simulation [--topology ring|grid|random|scalefree] [--routers n] [--seed s]"
+              + " [--changes k] [--floodDelay ms] [--minLsInterval ms] [--helloInterval ms] [--timeout s] [--verbose]");
+          System.exit(1);
+      }
+    }
+
+    PrintStream report = System.out;
+    if (!verbose) {
+      System.setOut(new PrintStream(new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+      }));
+    }
+    Topology topology = Topology.generate(kind, count, seed);
+    report.println(topology + ", seed " + seed + ", " + changes + " changes per phase");
+    Simulation simulation = new Simulation(topology, settings, timeoutMs);
+    Random random = new Random(seed);
+    try {
+      report.println(simulation.start());
+      report.println(simulation.update(changes, random));
+      report.println(simulation.disconnect(changes, random));
+    } finally {
+      simulation.shutdown();
+    }
+  }
+}
@@ -0,0 +1,171 @@
+package socs.network.node;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hashed timing wheel for many coarse timers, e.g. one dead interval per neighbor.
+ * <p/>
+ * Time advances in fixed ticks. A timer lives in the bucket of the tick it expires on (modulo the wheel
+ * size) and counts down the full turns of the wheel it still has to wait, so scheduling, rescheduling
+ * and cancelling are O(1) and one thread serves every timer. Expired tasks are handed to an executor so
+ * a slow task does not hold up the ticks. Timers fire up to one tick late, never early.
+ */
+class TimerWheel {
+
+  final class Timeout {
+    private final Runnable task;
+    private int bucket = -1;
+    // full turns of the wheel left before the timer is due
+    private long rounds;
+    private Timeout prev;
+    private Timeout next;
+
+    private Timeout(Runnable task) {
+      this.task = task;
+    }
+
+    /**
+     * move the timer so it expires delayMs from now; also re-arms one that expired or was cancelled
+     */
+    void reschedule(long delayMs) {
+      synchronized (TimerWheel.this) {
+        unlink(this);
+        link(this, delayMs);
+      }
+    }
+
+    // true until the timer expires or is cancelled
+    boolean pending() {
+      synchronized (TimerWheel.this) {
+        return bucket >= 0;
+      }
+    }
+
+    /**
+     * @return false if the timer had already expired or been cancelled
+     */
+    boolean cancel() {
+      synchronized (TimerWheel.this) {
+        return unlink(this);
+      }
+    }
+  }
+
+  private final long tickNanos;
+  private final Timeout[] buckets;
+  private final int mask;
+  private final Executor executor;
+  private final Thread ticker;
+  // guarded by this
+  private long tick;
+  private volatile boolean stopped;
+
+  /**
+   * @param tickMs     timer resolution
+   * @param wheelSize  number of buckets, rounded up to a power of two; timers further out than
+   *                   tickMs * wheelSize just wait extra turns
+   * @param executor   runs expired tasks
+   */
+  TimerWheel(String name, long tickMs, int wheelSize, Executor executor) {
+    this.tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickMs));
+    int size = Integer.highestOneBit(Math.max(2, wheelSize - 1)) << 1;
+    this.buckets = new Timeout[size];
+    this.mask = size - 1;
+    this.executor = executor;
+    this.ticker = new Thread(this::run, name);
+    ticker.setDaemon(true);
+    ticker.start();
+  }
+
+  synchronized Timeout schedule(Runnable task, long delayMs) {
+    Timeout timeout = new Timeout(task);
+    link(timeout, delayMs);
+    return timeout;
+  }
+
+  void stop() {
+    stopped = true;
+    ticker.interrupt();
+  }
+
+  private void link(Timeout timeout, long delayMs) {
+    long ticks = Math.max(1, (TimeUnit.MILLISECONDS.toNanos(delayMs) + tickNanos - 1) / tickNanos);
+    int bucket = (int) ((tick + ticks) & mask);
+    timeout.bucket = bucket;
+    timeout.rounds = (ticks - 1) / buckets.length;
+    timeout.prev = null;
+    timeout.next = buckets[bucket];
+    if (timeout.next != null) {
+      timeout.next.prev = timeout;
+    }
+    buckets[bucket] = timeout;
+  }
+
+  private boolean unlink(Timeout timeout) {
+    if (timeout.bucket < 0) {
+      return false;
+    }
+    if (timeout.prev != null) {
+      timeout.prev.next = timeout.next;
+    } else {
+      buckets[timeout.bucket] = timeout.next;
+    }
+    if (timeout.next != null) {
+      timeout.next.prev = timeout.prev;
+    }
+    timeout.bucket = -1;
+    timeout.prev = null;
+    timeout.next = null;
+    return true;
+  }
+
+  private void run() {
+    long start = System.nanoTime();
+    long processed = 0;
+    List<Runnable> expired = new ArrayList<>();
+    while (!stopped) {
+      long sleepNanos = start + (processed + 1) * tickNanos - System.nanoTime();
+      if (sleepNanos > 0) {
+        try {
+          TimeUnit.NANOSECONDS.sleep(sleepNanos);
+        } catch (InterruptedException e) {
+          return;
+        }
+      }
+      // catch up tick by tick if the thread fell behind
+      long due = (System.nanoTime() - start) / tickNanos;
+      synchronized (this) {
+        while (processed < due) {
+          processed++;
+          tick = processed;
+          expire((int) (tick & mask), expired);
+        }
+      }
+      for (Runnable task : expired) {
+        try {
+          executor.execute(task);
+        } catch (RuntimeException e) {
+          // executor shut down; nothing left to run the task
+        }
+      }
+      expired.clear();
+    }
+  }
+
+  private void expire(int bucket, List<Runnable> expired) {
+    Timeout timeout = buckets[bucket];
+    while (timeout != null) {
+      Timeout next = timeout.next;
+      if (timeout.rounds == 0) {
+        unlink(timeout);
+        expired.add(timeout.task);
+      } else {
+        timeout.rounds--;
+      }
+      timeout = next;
+    }
+  }
+}
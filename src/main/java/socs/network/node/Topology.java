@@ -0,0 +1,176 @@
+package socs.network.node;
+
+import socs.network.message.LSA;
+import socs.network.message.LinkDescription;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * A synthetic network for benchmarks and simulations: n routers named 10.x.y.z and a list of
+ * undirected weighted links between them.
+ * <p/>
+ * Shapes: ring, grid (as square as n allows), random (a random spanning tree plus extra links up to an
+ * average degree of four) and scale-free (Barabasi-Albert, each new router attaching to two existing
+ * ones with probability proportional to their degree). Every shape is connected, and the same seed
+ * always gives the same network. Weights are uniform in 1..10.
+ */
+final class Topology {
+
+  static final int MAX_WEIGHT = 10;
+
+  final String kind;
+  final int routers;
+  // link i joins router from[i] and router to[i]
+  final int[] from;
+  final int[] to;
+  final int[] weight;
+
+  private Topology(String kind, int routers, List<int[]> links) {
+    this.kind = kind;
+    this.routers = routers;
+    this.from = new int[links.size()];
+    this.to = new int[links.size()];
+    this.weight = new int[links.size()];
+    for (int i = 0; i < links.size(); i++) {
+      int[] link = links.get(i);
+      from[i] = link[0];
+      to[i] = link[1];
+      weight[i] = link[2];
+    }
+  }
+
+  /**
+   * @param kind ring, grid, random or scalefree
+   */
+  static Topology generate(String kind, int routers, long seed) {
+    if (routers < 1) {
+      throw new IllegalArgumentException("need at least one router: " + routers);
+    }
+    Builder b = new Builder(routers, new Random(seed));
+    switch (kind) {
+      case "ring":
+        for (int i = 0; i + 1 < routers; i++) {
+          b.link(i, i + 1);
+        }
+        if (routers > 2) {
+          b.link(routers - 1, 0);
+        }
+        break;
+      case "grid":
+        int side = (int) Math.ceil(Math.sqrt(routers));
+        for (int i = 0; i < routers; i++) {
+          if ((i + 1) % side != 0 && i + 1 < routers) {
+            b.link(i, i + 1);
+          }
+          if (i + side < routers) {
+            b.link(i, i + side);
+          }
+        }
+        break;
+      case "random":
+        for (int i = 1; i < routers; i++) {
+          b.link(i, b.random.nextInt(i));
+        }
+        long target = 2L * routers;
+        long candidates = (long) routers * (routers - 1) / 2;
+        while (b.size() < Math.min(target, candidates)) {
+          b.link(b.random.nextInt(routers), b.random.nextInt(routers));
+        }
+        break;
+      case "scalefree":
+        // every link adds both ends here, so a uniform pick from it is a pick proportional to degree
+        List<Integer> ends = new ArrayList<>();
+        for (int i = 1; i < routers; i++) {
+          int attach = Math.min(2, i);
+          int added = 0;
+          while (added < attach) {
+            int peer = i <= 2 ? added : ends.get(b.random.nextInt(ends.size()));
+            if (b.link(i, peer)) {
+              ends.add(i);
+              ends.add(peer);
+              added++;
+            }
+          }
+        }
+        break;
+      default:
+        throw new IllegalArgumentException("Unknown topology: " + kind + " (ring, grid, random, scalefree)");
+    }
+    return new Topology(kind, routers, b.links);
+  }
+
+  static String ip(int router) {
+    return "10." + ((router >>> 16) & 0xff) + "." + ((router >>> 8) & 0xff) + "." + (router & 0xff);
+  }
+
+  int links() {
+    return from.length;
+  }
+
+  /**
+   * one LSA per router, listing every link it is on, as the routers themselves would advertise them
+   */
+  List<LSA> toLsas(int seqNumber) {
+    LSA[] lsas = new LSA[routers];
+    for (int r = 0; r < routers; r++) {
+      lsas[r] = new LSA();
+      lsas[r].linkStateID = ip(r);
+      lsas[r].lsaSeqNumber = seqNumber;
+    }
+    for (int i = 0; i < from.length; i++) {
+      lsas[from[i]].links.add(link(to[i], lsas[from[i]].links.size(), weight[i]));
+      lsas[to[i]].links.add(link(from[i], lsas[to[i]].links.size(), weight[i]));
+    }
+    List<LSA> list = new ArrayList<>(routers);
+    for (LSA lsa : lsas) {
+      list.add(lsa);
+    }
+    return list;
+  }
+
+  private static LinkDescription link(int peer, int port, int weight) {
+    LinkDescription ld = new LinkDescription();
+    ld.linkID = ip(peer);
+    ld.portNum = port;
+    ld.weight = weight;
+    return ld;
+  }
+
+  @Override
+  public String toString() {
+    return kind + " of " + routers + " routers, " + from.length + " links";
+  }
+
+  private static final class Builder {
+    final int routers;
+    final Random random;
+    final List<int[]> links = new ArrayList<>();
+    final Set<Long> present = new HashSet<>();
+
+    Builder(int routers, Random random) {
+      this.routers = routers;
+      this.random = random;
+    }
+
+    int size() {
+      return links.size();
+    }
+
+    // Returns false for a self loop or a link that already exists
+    boolean link(int a, int b) {
+      if (a == b) {
+        return false;
+      }
+      long key = (long) Math.min(a, b) * routers + Math.max(a, b);
+      if (!present.add(key)) {
+        return false;
+      }
+      links.add(new int[]{a, b, 1 + random.nextInt(MAX_WEIGHT)});
+      return true;
+    }
+  }
+}
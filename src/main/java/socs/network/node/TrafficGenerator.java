@@ -0,0 +1,137 @@
+package socs.network.node;
+
+import socs.network.message.SOSPFPacket;
+
+import java.util.Arrays;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The sendbulk command: a burst or a steady rate of application messages to one destination, which
+ * echoes each one back so the source can time it.
+ * <p/>
+ * Each probe carries the run number and its send time (System.nanoTime of this process); the echo
+ * returns both unchanged, so the source measures the round trip on its own clock. At a fixed rate the
+ * send time is the time the message was scheduled for, not when the loop got around to it, so a stall
+ * in the sender shows up as latency instead of disappearing. At most MAX_IN_FLIGHT probes are
+ * unanswered at any time, which bounds the queues an unpaced run can build up.
+ */
+class TrafficGenerator {
+
+  static final int MAX_IN_FLIGHT = 4096;
+  // a run gives up once no echo has come back for this long
+  static final long ECHO_TIMEOUT_MS = 5000;
+
+  private static final class Run {
+    final int id;
+    final LatencyHistogram latency = new LatencyHistogram();
+    final Semaphore window = new Semaphore(MAX_IN_FLIGHT);
+    final LongAdder failed = new LongAdder();
+
+    Run(int id) {
+      this.id = id;
+    }
+  }
+
+  private final Router router;
+  private final AtomicInteger runIds = new AtomicInteger();
+  private volatile Run current;
+
+  TrafficGenerator(Router router) {
+    this.router = router;
+  }
+
+  /**
+   * send count messages of size bytes to destinationIP, spread over flows flow ids, and print what came back
+   *
+   * @param rate messages per second, or 0 to send as fast as the window allows
+   */
+  void run(String destinationIP, int count, int size, int rate, int flows) throws InterruptedException {
+    Run run = new Run(runIds.incrementAndGet());
+    current = run;
+    char[] fill = new char[size];
+    Arrays.fill(fill, 'x');
+    String payload = new String(fill);
+    long interval = rate > 0 ? TimeUnit.SECONDS.toNanos(1) / rate : 0;
+
+    System.out.println("Sending " + count + " messages of " + size + " bytes to " + destinationIP
+        + (rate > 0 ? " at " + rate + "/s" : "") + " over " + flows + " flow(s)");
+    long start = System.nanoTime();
+    int sent = 0;
+    // permits of messages given up on; the final wait does not count on them coming back
+    int abandoned = 0;
+    while (sent < count) {
+      if (!run.window.tryAcquire(ECHO_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+        System.out.println("No echo for " + ECHO_TIMEOUT_MS + " ms; stopping after " + sent + " messages");
+        // the whole window is out and none of it came back in time
+        abandoned = MAX_IN_FLIGHT;
+        break;
+      }
+      long sendTime = System.nanoTime();
+      if (interval > 0) {
+        long due = start + sent * interval;
+        while (sendTime < due) {
+          LockSupport.parkNanos(due - sendTime);
+          sendTime = System.nanoTime();
+        }
+        sendTime = due;
+      }
+      SOSPFPacket probe = router.buildApplicationPacket(destinationIP, payload, sent % flows);
+      probe.bulkKind = SOSPFPacket.BULK_PROBE;
+      probe.bulkRun = run.id;
+      probe.bulkSentNanos = sendTime;
+      if (!router.sendApplicationPacket(probe, e -> {
+        run.failed.increment();
+        run.window.release();
+      })) {
+        // nothing was sent, so the permit taken for it goes straight back
+        run.window.release();
+        System.out.println("Path not found");
+        break;
+      }
+      sent++;
+    }
+    long sendNanos = System.nanoTime() - start;
+
+    // wait for the rest of the echoes: every permit comes back once nothing is in flight
+    if (!run.window.tryAcquire(MAX_IN_FLIGHT - abandoned, ECHO_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+      System.out.println("Stopped waiting for echoes after " + ECHO_TIMEOUT_MS + " ms");
+    }
+    long totalNanos = System.nanoTime() - start;
+    current = null;
+    report(run, sent, size, sendNanos, totalNanos);
+  }
+
+  // Called for an echo addressed to this router; echoes of an earlier run are ignored
+  void echoReceived(SOSPFPacket echo) {
+    Run run = current;
+    if (run == null || echo.bulkRun != run.id) {
+      return;
+    }
+    run.latency.record(System.nanoTime() - echo.bulkSentNanos);
+    run.window.release();
+  }
+
+  private static void report(Run run, int sent, int size, long sendNanos, long totalNanos) {
+    LatencyHistogram latency = run.latency;
+    long echoes = latency.count();
+    long failed = run.failed.sum();
+    double sendSeconds = Math.max(1, sendNanos) / 1e9;
+    System.out.println(String.format("Sent %d messages in %.3f s: %.0f msg/s, %.2f MB/s of payload",
+        sent, sendSeconds, sent / sendSeconds, (double) sent * size / sendSeconds / 1e6));
+    System.out.println(String.format("Echoes: %d received (%.0f msg/s), %d failed to send, %d lost",
+        echoes, echoes / (Math.max(1, totalNanos) / 1e9), failed, Math.max(0, sent - echoes - failed)));
+    if (echoes > 0) {
+      System.out.println(String.format("Round trip: mean %s, p50 %s, p99 %s, p99.9 %s, max %s",
+          millis(latency.mean()), millis(latency.percentile(50)), millis(latency.percentile(99)),
+          millis(latency.percentile(99.9)), millis(latency.max())));
+    }
+  }
+
+  private static String millis(double nanos) {
+    return String.format("%.3f ms", nanos / 1e6);
+  }
+}
@@ -0,0 +1,230 @@
+package socs.network.node;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardProtocolFamily;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unix domain socket channels for routers that share a host (socs.network.router.unixSocket).
+ * <p/>
+ * They need a Java 16 runtime. The build still targets 1.8, so like virtual threads in ExecutionMode
+ * they are reached through reflection, and a router on an older runtime simply stays on TCP.
+ */
+final class UnixSockets {
+
+  private static final ProtocolFamily UNIX = unixFamily();
+  private static final Method ADDRESS_OF = lookup("java.net.UnixDomainSocketAddress", "of", String.class);
+  private static final Method OPEN_SERVER = lookup("java.nio.channels.ServerSocketChannel", "open", ProtocolFamily.class);
+  private static final long WAIT_SLICE_MS = 1000;
+
+  private UnixSockets() {
+  }
+
+  static boolean available() {
+    return UNIX != null && ADDRESS_OF != null && OPEN_SERVER != null;
+  }
+
+  /**
+   * true if the process IP is an address of this host, i.e. a router listening there shares our file system
+   */
+  static boolean isLocal(String processIP) {
+    try {
+      InetAddress address = InetAddress.getByName(processIP);
+      return address.isLoopbackAddress() || address.isAnyLocalAddress()
+          || NetworkInterface.getByInetAddress(address) != null;
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  /**
+   * bind a blocking server channel to the path. A socket file left behind by a router that is gone is
+   * replaced; one that still accepts connections is not.
+   */
+  static ServerSocketChannel listen(String path) throws IOException {
+    Path file = Paths.get(path);
+    if (Files.exists(file)) {
+      if (accepting(path)) {
+        throw new IOException("Address already in use: " + path);
+      }
+      Files.deleteIfExists(file);
+    }
+    Path parent = file.toAbsolutePath().getParent();
+    if (parent != null) {
+      Files.createDirectories(parent);
+    }
+    ServerSocketChannel server = (ServerSocketChannel) invoke(OPEN_SERVER, null, UNIX);
+    try {
+      server.bind(address(path));
+    } catch (IOException e) {
+      server.close();
+      throw e;
+    }
+    return server;
+  }
+
+  static SocketChannel connect(String path) throws IOException {
+    return SocketChannel.open(address(path));
+  }
+
+  private static boolean accepting(String path) {
+    try {
+      connect(path).close();
+      return true;
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  // Closes the server channel and removes its socket file
+  static void close(ServerSocketChannel server, String path) {
+    try {
+      server.close();
+    } catch (IOException ignored) {
+    }
+    try {
+      Files.deleteIfExists(Paths.get(path));
+    } catch (IOException ignored) {
+    }
+  }
+
+  /**
+   * streams over a channel. Channels.newInputStream would hold the channel's blocking lock while a read
+   * waits, which keeps the other direction from writing.
+   * <p/>
+   * A blocking SocketChannel ignores SO_TIMEOUT, so a channel that needs a read deadline is put in
+   * non-blocking mode instead: a read that finds nothing waits on a selector until data arrives or
+   * readTimeoutMs ran out (SocketTimeoutException), and a write that finds the socket buffer full waits
+   * until it drains. 0 leaves a blocking channel as it is and reads wait for as long as it takes.
+   */
+  static InputStream inputStream(final SocketChannel channel, final int readTimeoutMs) throws IOException {
+    if (readTimeoutMs > 0) {
+      channel.configureBlocking(false);
+    }
+    return new InputStream() {
+      @Override
+      public int read() throws IOException {
+        byte[] one = new byte[1];
+        return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+      }
+
+      @Override
+      public int read(byte[] target, int offset, int length) throws IOException {
+        if (length == 0) {
+          return 0;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(target, offset, length);
+        int n = channel.read(buffer);
+        if (n != 0 || channel.isBlocking()) {
+          return n;
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(readTimeoutMs);
+        while ((n = channel.read(buffer)) == 0) {
+          long left = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+          if (left <= 0) {
+            throw new SocketTimeoutException("Read timed out after " + readTimeoutMs + " ms");
+          }
+          await(channel, SelectionKey.OP_READ, left);
+        }
+        return n;
+      }
+
+      @Override
+      public void close() throws IOException {
+        channel.close();
+      }
+    };
+  }
+
+  static OutputStream outputStream(final SocketChannel channel) {
+    return new OutputStream() {
+      @Override
+      public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+      }
+
+      @Override
+      public void write(byte[] source, int offset, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(source, offset, length);
+        while (buffer.hasRemaining()) {
+          if (channel.write(buffer) == 0 && !channel.isBlocking()) {
+            await(channel, SelectionKey.OP_WRITE, WAIT_SLICE_MS);
+          }
+        }
+      }
+
+      @Override
+      public void close() throws IOException {
+        channel.close();
+      }
+    };
+  }
+
+  /**
+   * wait until a non-blocking channel is ready for the operation, or at most timeoutMs. Closing the
+   * channel does not wake a selector reliably, so no wait lasts longer than WAIT_SLICE_MS; the caller
+   * retries and finds the channel closed. The selector only exists for the wait, which is only taken
+   * when the channel had nothing to read or no room to write.
+   */
+  private static void await(SocketChannel channel, int op, long timeoutMs) throws IOException {
+    try (Selector selector = Selector.open()) {
+      channel.register(selector, op);
+      selector.select(Math.max(1, Math.min(timeoutMs, WAIT_SLICE_MS)));
+    }
+  }
+
+  private static SocketAddress address(String path) throws IOException {
+    if (!available()) {
+      throw new IOException("Unix domain sockets need Java 16 or newer");
+    }
+    return (SocketAddress) invoke(ADDRESS_OF, null, path);
+  }
+
+  // Unwraps the IOException a reflective call threw
+  private static Object invoke(Method method, Object target, Object... args) throws IOException {
+    try {
+      return method.invoke(target, args);
+    } catch (InvocationTargetException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException(e.getCause());
+    } catch (IllegalAccessException e) {
+      throw new IllegalStateException("Failed to call " + method, e);
+    }
+  }
+
+  private static ProtocolFamily unixFamily() {
+    try {
+      return StandardProtocolFamily.valueOf("UNIX");
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+  }
+
+  // Returns null when the running JDK does not have the method
+  private static Method lookup(String className, String name, Class<?>... params) {
+    try {
+      return Class.forName(className).getMethod(name, params);
+    } catch (ClassNotFoundException | NoSuchMethodException e) {
+      return null;
+    }
+  }
+}
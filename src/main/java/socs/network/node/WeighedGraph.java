@@ -3,107 +3,339 @@ package socs.network.node;
 import socs.network.message.LSA;
 import socs.network.message.LinkDescription;
 
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * The topology described by the link state database, kept as integers.
+ * <p/>
+ * Router IDs are interned to dense indices the first time they are seen (indices are never reused).
+ * For every router the graph keeps the links its LSA advertises and, separately, the usable edges in
+ * both directions. An edge is usable when both ends list each other, which is decided once when an LSA
+ * is applied instead of on every relaxation. Each edge change is reported to an EdgeListener as soon
+ * as it is made, so the incremental shortest path tree can repair itself one change at a time.
+ * <p/>
+ * csr() packs the usable edges into compressed sparse row arrays for full SPF runs.
+ * Not thread safe; only the LinkStateDatabase writer touches it. Csr instances are immutable.
+ */
 class WeighedGraph {
 
-  // String is the node ID, int is the weight of the edge. 
-  String[] nodeIds;
-  int[][] edges;
-
-  // Contructor that builds the graph from the given LSA store. 
-  WeighedGraph() {
-    nodeIds = new String[0];
-    edges = new int[0][0];
-  }
-
-  // WILL NOT BE USING WEIGHED GRAPH CLASS AS OF NOW
-  // COMMENTING OUT METHODS FOR NOW, BUT KEEPING THEM IN CASE WE DECIDE TO USE THIS CLASS LATER.
-
-  // void addEdge(String fromNode, String toNode, int weight) {
-  //   // adds an edge from 'fromNode' to 'toNode' with the given weight.
-  //   // Check if nodes exist. Throw error if not. Update the edges matrix accordingly.
-  //   if (!nodePresent(fromNode) || !nodePresent(toNode)) {
-  //     throw new IllegalArgumentException("One or both nodes do not exist in the graph.");
-  //   }
-
-  //   // Actual implementation
-  //   int fromNodeIndex = getNodeIndex(fromNode);
-  //   int toNodeIndex = getNodeIndex(toNode);
-  //   edges[fromNodeIndex][toNodeIndex] = weight;
-  // }
-
-  // void addNode(String nodeId) {
-
-  //   // adds a node with the given ID to the graph.
-  //   // Check if node already exists. Throw error if it does. 
-  //   if (nodePresent(nodeId)) {
-  //     throw new IllegalArgumentException("Node with ID " + nodeId + " already exists in the graph.");
-  //   }
-
-  //   // Actual implementation
-  //   nodeIds = java.util.Arrays.copyOf(nodeIds, nodeIds.length + 1);
-  //   nodeIds[nodeIds.length - 1] = nodeId;
-  //   // Resize the edges matrix to accommodate the new node
-  //   int[][] updatedEdges = new int[nodeIds.length][nodeIds.length];
-  //   for (int i = 0; i < edges.length; i++) {
-  //     System.arraycopy(edges[i], 0, updatedEdges[i], 0, edges[i].length);
-  //   }
-  //   edges = updatedEdges;
-  // }
-
-  // boolean nodePresent(String nodeId) {
-  //   // Checking if node with given ID is already present in the graph
-  //   for (String id : nodeIds) {
-  //     if (id.equals(nodeId)) {
-  //       return true;
-  //     }
-  //   }
-  //   return false;
-  // }
-
-  // int getNodeIndex(String nodeId) {
-  //   // Scan array for the given node ID and return index
-  //   for (int i = 0; i < nodeIds.length; i++) {
-  //     if (nodeIds[i].equals(nodeId)) {
-  //       return i;
-  //     }
-  //   }
-  //   throw new IllegalArgumentException(nodeId + " node does not exist in the graph.");
-  // }
-
-  // // removes edge from 'fromNode' to 'toNode' by setting the weight to Integer.MAX_VALUE (indicating no edge).
-  // void removeEdge(String fromNode, String toNode) {
-  //   // removes the edge from 'fromNode' to 'toNode'.
-  //   // Check if nodes exist. Throw error if not. Update the edges matrix accordingly.
-  //   if (!nodePresent(fromNode)) {
-  //     throw new IllegalArgumentException("Node with ID " + fromNode + " doesn't exist");
-  //   }
-
-  //   if (!nodePresent(toNode)) {
-  //     throw new IllegalArgumentException("Node with ID " + toNode + " doesn't exist");
-  //   }
-
-  //   if (!edgePresent(fromNode, toNode)) {
-  //     throw new IllegalArgumentException("Edge does not exist between " + fromNode + " and " + toNode + ".");
-  //   }
-  //   // Actual implementation
-  //   int fromNodeIndex = getNodeIndex(fromNode);
-  //   int toNodeIndex = getNodeIndex(toNode);
-  //   edges[fromNodeIndex][toNodeIndex] = Integer.MAX_VALUE; // Assuming Integer.MAX_VALUE indicates no edge
-  // }
-
-  // boolean edgePresent(String fromNode, String toNode) {
-  //   if (!nodePresent(fromNode)) {
-  //     throw new IllegalArgumentException("fromNode with ID " + fromNode + " doesn't exist");
-  //   }
-
-  //   if (!nodePresent(toNode)) {
-  //     throw new IllegalArgumentException("toNode with ID " + toNode + " doesn't exist");
-  //   }
-
-  //   int fromNodeIndex = getNodeIndex(fromNode);
-  //   int toNodeIndex = getNodeIndex(toNode);
-  //   return edges[fromNodeIndex][toNodeIndex] != Integer.MAX_VALUE; // Assuming Integer.MAX_VALUE indicates no edge
-  // }
+  static final int NO_EDGE = -1;
+
+  interface EdgeListener {
+    // weights are NO_EDGE when the edge did not exist before / does not exist anymore
+    void edgeChanged(int from, int to, int oldWeight, int newWeight);
+  }
+
+  /**
+   * immutable compressed sparse row copy of the usable edges: the edges of node u are
+   * targets[offsets[u] .. offsets[u + 1]) with the matching weights
+   */
+  static final class Csr {
+    final String[] ids;
+    final int[] offsets;
+    final int[] targets;
+    final int[] weights;
+    // the graph's id => index map; routers it interned after this copy map to ids.length or more
+    private final Map<String, Integer> index;
+
+    Csr(String[] ids, Map<String, Integer> index, int[] offsets, int[] targets, int[] weights) {
+      this.ids = ids;
+      this.index = index;
+      this.offsets = offsets;
+      this.targets = targets;
+      this.weights = weights;
+    }
+
+    int nodeCount() {
+      return ids.length;
+    }
+
+    // Returns -1 if the router is not in the graph
+    int indexOf(String id) {
+      Integer i = id == null ? null : index.get(id);
+      return i == null || i >= ids.length ? -1 : i;
+    }
+
+    /**
+     * Dijkstra from one router over the packed edges
+     *
+     * @param distance filled with the distance to every node, IncrementalShortestPath.UNREACHABLE if none
+     * @param parent   filled with every node's predecessor on its shortest path, -1 for the source and
+     *                 unreachable nodes
+     * @param heap     an empty heap with capacity for nodeCount() nodes; it is empty again on return
+     */
+    void shortestPaths(int source, int[] distance, int[] parent, IndexedMinHeap heap) {
+      int n = nodeCount();
+      Arrays.fill(distance, 0, n, IncrementalShortestPath.UNREACHABLE);
+      Arrays.fill(parent, 0, n, -1);
+      distance[source] = 0;
+      heap.offer(source, 0);
+      while (!heap.isEmpty()) {
+        int u = heap.poll();
+        int du = distance[u];
+        for (int e = offsets[u]; e < offsets[u + 1]; e++) {
+          int next = targets[e];
+          int nextDist = du + weights[e];
+          if (nextDist < distance[next]) {
+            distance[next] = nextDist;
+            parent[next] = u;
+            heap.offer(next, nextDist);
+          }
+        }
+      }
+    }
+  }
+
+  private static final EdgeListener IGNORE_CHANGES = (from, to, oldWeight, newWeight) -> {
+  };
+
+  /**
+   * build a standalone graph from a set of LSAs and pack it, e.g. from an LSDB snapshot
+   */
+  static Csr csrOf(Collection<LSA> lsas) {
+    WeighedGraph graph = new WeighedGraph();
+    int[] to = new int[8];
+    int[] weights = new int[8];
+    for (LSA lsa : lsas) {
+      int router = graph.intern(lsa.linkStateID);
+      if (to.length < lsa.links.size()) {
+        to = new int[lsa.links.size()];
+        weights = new int[lsa.links.size()];
+      }
+      int count = 0;
+      for (LinkDescription ld : lsa.links) {
+        if (ld != null && ld.linkID != null) {
+          to[count] = graph.intern(ld.linkID);
+          weights[count] = ld.weight;
+          count++;
+        }
+      }
+      graph.setAdvertised(router, to, weights, count, IGNORE_CHANGES);
+    }
+    return graph.csr();
+  }
+
+  // concurrent so published ShortestPathTrees can look up names while the writer interns new ones
+  private final Map<String, Integer> index = new ConcurrentHashMap<>();
+  private String[] ids = new String[16];
+  private int size;
+
+  // links listed in each router's LSA
+  private int[][] advTo = new int[16][];
+  private int[][] advWeight = new int[16][];
+  private int[] advCount = new int[16];
+
+  // usable edges, indexed both ways
+  int[][] outTo = new int[16][];
+  int[][] outWeight = new int[16][];
+  int[] outDegree = new int[16];
+  int[][] inFrom = new int[16][];
+  int[][] inWeight = new int[16][];
+  int[] inDegree = new int[16];
+
+  private Csr csr;
+
+  int size() {
+    return size;
+  }
+
+  int capacity() {
+    return ids.length;
+  }
+
+  String id(int node) {
+    return ids[node];
+  }
+
+  /**
+   * the array behind id(). It is replaced when the graph grows, and entries below size() never change,
+   * so a reader may keep it along with the size it saw.
+   */
+  String[] ids() {
+    return ids;
+  }
+
+  // id => index of every router interned so far; safe to read from other threads
+  Map<String, Integer> index() {
+    return index;
+  }
+
+  // Returns -1 if the router has never been seen
+  int indexOf(String id) {
+    Integer i = index.get(id);
+    return i == null ? -1 : i;
+  }
+
+  int intern(String id) {
+    Integer existing = index.get(id);
+    if (existing != null) {
+      return existing;
+    }
+    if (size == ids.length) {
+      grow(size * 2);
+    }
+    int i = size++;
+    ids[i] = id;
+    index.put(id, i);
+    return i;
+  }
+
+  /**
+   * usable weight of the edge from -> to, or NO_EDGE
+   */
+  int weight(int from, int to) {
+    return find(outTo[from], outWeight[from], outDegree[from], to);
+  }
+
+  /**
+   * replace the links advertised by one router and report every usable edge that changed as a result
+   *
+   * @param to      neighbor indices as listed in the router's LSA (duplicates keep the lowest weight)
+   * @param weights matching link weights
+   */
+  void setAdvertised(int router, int[] to, int[] weights, int count, EdgeListener listener) {
+    int[] oldTo = advTo[router];
+    int oldCount = advCount[router];
+
+    int[] newTo = new int[count];
+    int[] newWeight = new int[count];
+    int n = 0;
+    for (int k = 0; k < count; k++) {
+      if (to[k] == router) {
+        continue;
+      }
+      int existing = indexIn(newTo, n, to[k]);
+      if (existing < 0) {
+        newTo[n] = to[k];
+        newWeight[n] = weights[k];
+        n++;
+      } else if (weights[k] < newWeight[existing]) {
+        newWeight[existing] = weights[k];
+      }
+    }
+    advTo[router] = newTo;
+    advWeight[router] = newWeight;
+    advCount[router] = n;
+
+    for (int k = 0; k < n; k++) {
+      refresh(router, newTo[k], listener);
+    }
+    for (int k = 0; k < oldCount; k++) {
+      if (indexIn(newTo, n, oldTo[k]) < 0) {
+        refresh(router, oldTo[k], listener);
+      }
+    }
+  }
+
+  /**
+   * @return the usable edges packed as CSR; rebuilt only after an edge changed
+   */
+  Csr csr() {
+    if (csr == null) {
+      int[] offsets = new int[size + 1];
+      for (int u = 0; u < size; u++) {
+        offsets[u + 1] = offsets[u] + outDegree[u];
+      }
+      int[] targets = new int[offsets[size]];
+      int[] weights = new int[offsets[size]];
+      for (int u = 0; u < size; u++) {
+        if (outDegree[u] > 0) {
+          System.arraycopy(outTo[u], 0, targets, offsets[u], outDegree[u]);
+          System.arraycopy(outWeight[u], 0, weights, offsets[u], outDegree[u]);
+        }
+      }
+      csr = new Csr(Arrays.copyOf(ids, size), index, offsets, targets, weights);
+    }
+    return csr;
+  }
+
+  // Re-evaluate both directions between a router whose LSA changed and one of its (old or new) neighbors
+  private void refresh(int router, int neighbor, EdgeListener listener) {
+    setEdge(router, neighbor, usableWeight(router, neighbor), listener);
+    setEdge(neighbor, router, usableWeight(neighbor, router), listener);
+  }
+
+  private int usableWeight(int from, int to) {
+    if (find(advTo[to], advWeight[to], advCount[to], from) == NO_EDGE) {
+      return NO_EDGE;
+    }
+    return find(advTo[from], advWeight[from], advCount[from], to);
+  }
+
+  private void setEdge(int from, int to, int weight, EdgeListener listener) {
+    int old = weight(from, to);
+    if (old == weight) {
+      return;
+    }
+    if (weight == NO_EDGE) {
+      removeFromRow(outTo, outWeight, outDegree, from, to);
+      removeFromRow(inFrom, inWeight, inDegree, to, from);
+    } else {
+      putInRow(outTo, outWeight, outDegree, from, to, weight);
+      putInRow(inFrom, inWeight, inDegree, to, from, weight);
+    }
+    csr = null;
+    listener.edgeChanged(from, to, old, weight);
+  }
+
+  private static int find(int[] to, int[] weights, int count, int target) {
+    for (int k = 0; k < count; k++) {
+      if (to[k] == target) {
+        return weights[k];
+      }
+    }
+    return NO_EDGE;
+  }
+
+  private static int indexIn(int[] values, int count, int value) {
+    for (int k = 0; k < count; k++) {
+      if (values[k] == value) {
+        return k;
+      }
+    }
+    return -1;
+  }
+
+  private static void putInRow(int[][] to, int[][] weights, int[] degree, int row, int target, int weight) {
+    int k = indexIn(to[row], degree[row], target);
+    if (k >= 0) {
+      weights[row][k] = weight;
+      return;
+    }
+    if (to[row] == null || degree[row] == to[row].length) {
+      int capacity = to[row] == null ? 4 : to[row].length * 2;
+      to[row] = to[row] == null ? new int[capacity] : Arrays.copyOf(to[row], capacity);
+      weights[row] = weights[row] == null ? new int[capacity] : Arrays.copyOf(weights[row], capacity);
+    }
+    to[row][degree[row]] = target;
+    weights[row][degree[row]] = weight;
+    degree[row]++;
+  }
+
+  // swaps the last edge into the hole; edge order within a row does not matter
+  private static void removeFromRow(int[][] to, int[][] weights, int[] degree, int row, int target) {
+    int k = indexIn(to[row], degree[row], target);
+    if (k < 0) {
+      return;
+    }
+    int last = --degree[row];
+    to[row][k] = to[row][last];
+    weights[row][k] = weights[row][last];
+  }
+
+  private void grow(int capacity) {
+    ids = Arrays.copyOf(ids, capacity);
+    advTo = Arrays.copyOf(advTo, capacity);
+    advWeight = Arrays.copyOf(advWeight, capacity);
+    advCount = Arrays.copyOf(advCount, capacity);
+    outTo = Arrays.copyOf(outTo, capacity);
+    outWeight = Arrays.copyOf(outWeight, capacity);
+    outDegree = Arrays.copyOf(outDegree, capacity);
+    inFrom = Arrays.copyOf(inFrom, capacity);
+    inWeight = Arrays.copyOf(inWeight, capacity);
+    inDegree = Arrays.copyOf(inDegree, capacity);
+  }
 }
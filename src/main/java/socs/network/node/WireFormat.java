@@ -0,0 +1,26 @@
+package socs.network.node;
+
+/**
+ * encoding used for packets this router sends; inbound connections are detected automatically, so
+ * routers on either setting can still talk to each other while a network is being switched over
+ */
+enum WireFormat {
+  // ObjectOutputStream, understood by routers that predate the binary codec
+  JAVA,
+  // length-prefixed frames written by SOSPFCodec
+  BINARY;
+
+  static WireFormat parse(String value) {
+    if (value == null) {
+      return BINARY;
+    }
+    String v = value.trim();
+    if (v.equalsIgnoreCase("java") || v.equalsIgnoreCase("serialized")) {
+      return JAVA;
+    }
+    if (v.equalsIgnoreCase("binary")) {
+      return BINARY;
+    }
+    throw new IllegalArgumentException("Unknown wire format: " + value);
+  }
+}
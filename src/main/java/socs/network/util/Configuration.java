@@ -15,6 +15,11 @@ public class Configuration {
     _config = ConfigFactory.parseFile(new File(path));
   }
 
+  // an empty configuration, filled with addEntry()
+  public Configuration() {
+    _config = ConfigFactory.empty();
+  }
+
   public String getString(String key) {
     return _config.getString(key);
   }